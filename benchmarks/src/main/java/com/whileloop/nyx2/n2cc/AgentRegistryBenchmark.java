@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link RemoteN2Agent#findAgent} lookups from several worker threads while
+ * another thread keeps registering and deregistering agents, as happens
+ * during a reconnect storm.
+ *
+ * @author sulochana
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class AgentRegistryBenchmark {
+
+    @Param({"10000"})
+    public int agents;
+
+    private UUID[] uuids;
+    private List<RemoteN2Agent> registered;
+    private RemoteN2Agent[] churn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.startDatabase();
+        BenchmarkSupport.agentService();
+        uuids = new UUID[agents];
+        registered = new ArrayList<>(agents);
+        for (int i = 0; i < agents; i++) {
+            RemoteN2Agent agent = newAgent(i);
+            RemoteN2Agent.registerN2A(agent);
+            registered.add(agent);
+            uuids[i] = agent.getAgentUUID();
+        }
+        churn = new RemoteN2Agent[1024];
+        for (int i = 0; i < churn.length; i++) {
+            churn[i] = newAgent(agents + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (RemoteN2Agent agent : registered) {
+            RemoteN2Agent.deregisterAgent(agent.getAgentUUID());
+        }
+        for (RemoteN2Agent agent : churn) {
+            RemoteN2Agent.deregisterAgent(agent.getAgentUUID());
+        }
+    }
+
+    private static RemoteN2Agent newAgent(int agentId) {
+        ClientProbe probe = new ClientProbe("10.3." + (agentId / 250 % 250) + "." + (agentId % 250), 40000 + (agentId % 20000));
+        return new RemoteN2Agent(BenchmarkSupport.stubClient(probe), agentId, agentId % 64);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public RemoteN2Agent findAgent() {
+        return RemoteN2Agent.findAgent(uuids[ThreadLocalRandom.current().nextInt(uuids.length)]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void registerAndDeregister() {
+        RemoteN2Agent agent = churn[ThreadLocalRandom.current().nextInt(churn.length)];
+        RemoteN2Agent.registerN2A(agent);
+        RemoteN2Agent.deregisterAgent(agent.getAgentUUID());
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.HeartBeatMessage;
+import com.whileloop.sendit.client.SClient;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message dispatch through {@link AgentService#OnMessage} and heartbeat
+ * handling of a logged in agent. Each benchmark thread drives its own agent,
+ * like the worker event loops do, and waits for the heartbeat echo so the
+ * agent executor hop is part of the measurement.
+ *
+ * @author sulochana
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class AgentServiceBenchmark {
+
+    private static int nextAgentId = 1;
+
+    private AgentService service;
+    private RemoteN2Agent agent;
+    private ClientProbe probe;
+    private MessageDispatcher dispatcher;
+    private SClient knownClient;
+    private SClient unknownClient;
+    private HeartBeatMessage heartBeat;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.startDatabase();
+        service = BenchmarkSupport.agentService();
+        int agentId;
+        synchronized (AgentServiceBenchmark.class) {
+            agentId = nextAgentId++;
+        }
+        probe = new ClientProbe("10.1.0." + agentId, 50000 + agentId);
+        agent = BenchmarkSupport.loggedInAgent(probe, agentId);
+        knownClient = BenchmarkSupport.stubClient(probe);
+        unknownClient = BenchmarkSupport.stubClient(new ClientProbe("10.2.0." + agentId, 50000 + agentId));
+        heartBeat = BenchmarkSupport.heartBeat();
+        dispatcher = service.getDispatcher();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        RemoteN2Agent.deregisterAgent(agent.getAgentUUID());
+        agent.OnDisconnect();
+    }
+
+    @Benchmark
+    public void dispatchHeartBeat() {
+        long sent = probe.sent.get();
+        service.OnMessage(null, knownClient, heartBeat);
+        probe.awaitSent(sent);
+    }
+
+    @Benchmark
+    public void dispatchFromUnknownClient() {
+        service.OnMessage(null, unknownClient, heartBeat);
+    }
+
+    /**
+     * The handler alone, on the benchmark thread.
+     */
+    @Benchmark
+    public void handleHeartBeat() {
+        dispatcher.dispatch(agent, heartBeat);
+    }
+
+}
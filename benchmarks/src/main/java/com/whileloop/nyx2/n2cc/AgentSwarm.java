@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.nyx2.utils.NX2Logger;
+import io.netty.channel.nio.NioEventLoopGroup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator that ramps a swarm of simulated NX2 agents against an
+ * in-process Agent Service and reports what the Control Centre sustains.
+ * Agents log in with a token or with credentials, heart beat at a fixed
+ * rate, randomly drop their connection and come back with their token, and
+ * a share of them run with a skewed clock.
+ * <p>
+ * The agents do not open sockets. Each connection is a stubbed
+ * {@code SClient} handed straight to the {@link AgentService} callbacks, so
+ * there is no TCP, no TLS handshake or record encryption and no message
+ * framing. Every figure the swarm prints is an in-process upper bound on
+ * what the Control Centre sustains, not a capacity to plan a deployment on.
+ * <p>
+ * Every {@code SWARM_RAMP_INTERVAL_S} another {@code SWARM_RAMP_STEP} agents
+ * connect at once until {@code SWARM_AGENTS} are running, then the swarm
+ * holds for {@code SWARM_HOLD_S}. An interval counts as sustained when the
+ * heartbeat echo p99 stays within {@code SWARM_SLO_P99_MS} and no login
+ * was rejected by admission control, failed or timed out. Run it from the benchmark jar:
+ * <pre>
+ * java -cp benchmarks/target/n2cc-benchmarks.jar com.whileloop.nyx2.n2cc.AgentSwarm
+ * </pre>
+ *
+ * @author sulochana
+ */
+public final class AgentSwarm extends NX2Logger {
+
+    private static final String IN_PROCESS_NOTE = "In-process upper bound: agents use stubbed SClients, "
+            + "figures exclude sockets, TLS and message framing";
+
+    private final int agentCount;
+    private final int rampStep;
+    private final long rampIntervalMs;
+    private final long holdMs;
+    private final long heartBeatIntervalNanos;
+    private final double tokenRatio;
+    private final double dropRate;
+    private final long reconnectMaxMs;
+    private final double skewRatio;
+    private final long skewMs;
+    private final long loginTimeoutMs;
+    private final double sloP99Ms;
+
+    private final AgentService service;
+    private final LoginMessage credentialsLogin;
+    private final NioEventLoopGroup loops;
+    private final List<SimulatedAgent> agents = new ArrayList<>();
+
+    private final AtomicInteger online = new AtomicInteger();
+    private final LongAdder tokenLogins = new LongAdder();
+    private final LongAdder credentialLogins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder loginRejections = new LongAdder();
+    private final LongAdder loginTimeouts = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder terminations = new LongAdder();
+    private final LongAdder serverCloses = new LongAdder();
+    private final LatencyRecorder loginLatency = new LatencyRecorder();
+    private final LatencyRecorder intervalEcho = new LatencyRecorder();
+    private final LatencyRecorder totalEcho = new LatencyRecorder();
+
+    private long totalLogins = 0;
+    private double peakLoginRate = 0;
+    private int maxSustained = 0;
+    private int firstBreach = -1;
+
+    private AgentSwarm() throws Exception {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.agentCount = ControlCentreConfig.getInt("SWARM_AGENTS", 5000);
+        this.rampStep = ControlCentreConfig.getInt("SWARM_RAMP_STEP", 500);
+        this.rampIntervalMs = ControlCentreConfig.getLong("SWARM_RAMP_INTERVAL_S", 10) * 1000;
+        this.holdMs = ControlCentreConfig.getLong("SWARM_HOLD_S", 30) * 1000;
+        this.heartBeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                ControlCentreConfig.getLong("SWARM_HB_INTERVAL_MS", 5000));
+        this.tokenRatio = Double.parseDouble(ControlCentreConfig.getString("SWARM_TOKEN_RATIO", "0.5"));
+        this.dropRate = Double.parseDouble(ControlCentreConfig.getString("SWARM_DROP_RATE", "0.005"));
+        this.reconnectMaxMs = ControlCentreConfig.getLong("SWARM_RECONNECT_MAX_MS", 2000);
+        this.skewRatio = Double.parseDouble(ControlCentreConfig.getString("SWARM_SKEW_RATIO", "0.01"));
+        this.skewMs = ControlCentreConfig.getLong("SWARM_SKEW_MS", 600000);
+        this.loginTimeoutMs = ControlCentreConfig.getLong("SWARM_LOGIN_TIMEOUT_MS", 10000);
+        this.sloP99Ms = Double.parseDouble(ControlCentreConfig.getString("SWARM_SLO_P99_MS", "50"));
+
+        BenchmarkSupport.startDatabase();
+        this.service = BenchmarkSupport.agentService();
+        this.credentialsLogin = BenchmarkSupport.credentialsLogin();
+        this.loops = new NioEventLoopGroup(ControlCentreConfig.getInt("SWARM_THREADS",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        AgentSwarm swarm = new AgentSwarm();
+        try {
+            swarm.run();
+        } finally {
+            swarm.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        warn(IN_PROCESS_NOTE);
+        info("Swarm: %d agents, +%d every %dms, HB every %dms, token ratio %.2f, drop rate %.4f, skew ratio %.2f",
+                agentCount, rampStep, rampIntervalMs, TimeUnit.NANOSECONDS.toMillis(heartBeatIntervalNanos),
+                tokenRatio, dropRate, skewRatio);
+
+        int tokenAgents = (int) Math.round(agentCount * tokenRatio);
+        List<ClientProbe> seeded = BenchmarkSupport.seedAgents(tokenAgents);
+        Random random = new Random(42);
+        for (int i = 0; i < agentCount; i++) {
+            String token = i < tokenAgents ? seeded.get(i).authToken : null;
+            long skew = random.nextDouble() < skewRatio ? (random.nextBoolean() ? skewMs : -skewMs) : 0;
+            String host = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+            agents.add(new SimulatedAgent(this, loops.next(), host, token, skew));
+        }
+        Collections.shuffle(agents, random);
+
+        info("%8s %8s %10s %10s %8s %8s %8s %9s %9s %9s %9s %9s %6s %6s %6s",
+                "started", "online", "token/s", "cred/s", "rejected", "failed", "timeout", "login-p99",
+                "hb-p50", "hb-p90", "hb-p99", "hb-p99.9", "drops", "skew", "closed");
+        int started = 0;
+        while (started < agentCount) {
+            int step = Math.min(rampStep, agentCount - started);
+            for (int i = 0; i < step; i++) {
+                agents.get(started + i).start(0);
+            }
+            started += step;
+            Thread.sleep(rampIntervalMs);
+            report(started, rampIntervalMs);
+        }
+        long held = 0;
+        while (held < holdMs) {
+            long interval = Math.min(rampIntervalMs, holdMs - held);
+            Thread.sleep(interval);
+            held += interval;
+            report(started, interval);
+        }
+        summarize();
+    }
+
+    private void report(int started, long intervalMs) {
+        long token = tokenLogins.sumThenReset();
+        long credentials = credentialLogins.sumThenReset();
+        long logins = token + credentials;
+        long rejected = loginRejections.sumThenReset();
+        long failed = loginFailures.sumThenReset();
+        long timedOut = loginTimeouts.sumThenReset();
+        LatencyRecorder.Snapshot login = loginLatency.snapshot(true);
+        LatencyRecorder.Snapshot echo = intervalEcho.snapshot(true);
+        double loginRate = logins * 1000.0 / intervalMs;
+        int connected = online.get();
+
+        totalLogins += logins;
+        peakLoginRate = Math.max(peakLoginRate, loginRate);
+        if (echo.percentileMillis(99) <= sloP99Ms && rejected == 0 && failed == 0 && timedOut == 0) {
+            maxSustained = Math.max(maxSustained, connected);
+        } else if (firstBreach < 0) {
+            firstBreach = connected;
+        }
+
+        info("%8d %8d %10.1f %10.1f %8d %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %6d %6d %6d",
+                started, connected, token * 1000.0 / intervalMs, credentials * 1000.0 / intervalMs,
+                rejected, failed, timedOut, login.percentileMillis(99),
+                echo.percentileMillis(50), echo.percentileMillis(90), echo.percentileMillis(99),
+                echo.percentileMillis(99.9), drops.sumThenReset(), terminations.sumThenReset(),
+                serverCloses.sumThenReset());
+    }
+
+    private void summarize() {
+        LatencyRecorder.Snapshot echo = totalEcho.snapshot(false);
+        info("---------- Swarm summary (in-process upper bound) ----------");
+        info("Logins: %d, peak %.1f/s", totalLogins, peakLoginRate);
+        info("Heartbeat echoes: %d, p50 %.2fms p90 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms",
+                echo.getCount(), echo.percentileMillis(50), echo.percentileMillis(90),
+                echo.percentileMillis(99), echo.percentileMillis(99.9), echo.percentileMillis(100));
+        info("Max sustained connections: %d (HB p99 <= %.1fms, no rejected or failed logins)", maxSustained, sloP99Ms);
+        if (firstBreach >= 0) {
+            info("First breach at %d connections", firstBreach);
+        }
+        warn(IN_PROCESS_NOTE);
+    }
+
+    private void shutdown() throws InterruptedException {
+        for (SimulatedAgent agent : agents) {
+            agent.stop();
+        }
+        loops.shutdownGracefully(0, 5, TimeUnit.SECONDS).await();
+        service.shutdownService();
+    }
+
+    AgentService getService() {
+        return service;
+    }
+
+    LoginMessage getCredentialsLogin() {
+        return credentialsLogin;
+    }
+
+    long getHeartBeatIntervalNanos() {
+        return heartBeatIntervalNanos;
+    }
+
+    long getLoginTimeoutMs() {
+        return loginTimeoutMs;
+    }
+
+    long getReconnectMaxMs() {
+        return reconnectMaxMs;
+    }
+
+    double getDropRate() {
+        return dropRate;
+    }
+
+    void agentOnline() {
+        online.incrementAndGet();
+    }
+
+    void agentOffline() {
+        online.decrementAndGet();
+    }
+
+    void recordLogin(boolean token, long nanos) {
+        if (token) {
+            tokenLogins.increment();
+        } else {
+            credentialLogins.increment();
+        }
+        loginLatency.recordNanos(nanos);
+    }
+
+    void recordLoginFailure() {
+        loginFailures.increment();
+    }
+
+    void recordLoginRejected() {
+        loginRejections.increment();
+    }
+
+    void recordLoginTimeout() {
+        loginTimeouts.increment();
+    }
+
+    void recordHeartBeatEcho(long nanos) {
+        intervalEcho.recordNanos(nanos);
+        totalEcho.recordNanos(nanos);
+    }
+
+    void recordDrop() {
+        drops.increment();
+    }
+
+    void recordTermination() {
+        terminations.increment();
+    }
+
+    void recordServerClose() {
+        serverCloses.increment();
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.whileloop.nyx2.messages.HeartBeatMessage;
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.sendit.client.SClient;
+import com.whileloop.sendit.messages.SMessage;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Shared fixtures for the benchmarks: an in-memory H2 database in MySQL mode
+ * standing in for the agents table, an Agent Service that does not listen on
+ * a socket, and stubbed network clients and messages.
+ *
+ * @author sulochana
+ */
+final class BenchmarkSupport {
+
+    static {
+        System.setProperty("N2CC_AGENT_LISTEN", "false");
+        System.setProperty("N2CC_SESSION_SNAPSHOT_ENABLED", "false");
+        System.setProperty("N2CC_DB_DRIVER", "org.h2.Driver");
+        System.setProperty("N2CC_DB_URL", "jdbc:h2:mem:nyx2;MODE=MySQL;DB_CLOSE_DELAY=-1");
+    }
+
+    private static boolean databaseStarted = false;
+
+    private BenchmarkSupport() {
+    }
+
+    static synchronized void startDatabase() throws Exception {
+        if (databaseStarted) {
+            return;
+        }
+        new DBConnection();
+        try (Connection connection = DBConnection.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `agents` ("
+                    + "`agent_id` INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "`owner_id` INT NOT NULL, "
+                    + "`auth_token` CHAR(64), "
+                    + "`state` INT NOT NULL DEFAULT 0)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `agents_auth_token` ON `agents` (`auth_token`)");
+        }
+        new SchemaMigrations().migrate();
+        databaseStarted = true;
+    }
+
+    /**
+     * Inserts agents directly and returns a probe holding each one's token.
+     */
+    static List<ClientProbe> seedAgents(int count) throws Exception {
+        List<ClientProbe> probes = new ArrayList<>(count);
+        String query = "INSERT INTO `agents` (`owner_id`, `auth_token`, `state`) VALUES (?, ?, ?);";
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query)) {
+            for (int i = 0; i < count; i++) {
+                ClientProbe probe = new ClientProbe("10.0." + (i / 250) + "." + (i % 250), 40000 + (i % 20000));
+                probe.authToken = TokenIssuer.getInstance().issue();
+                statement.setInt(1, RemoteN2Agent.DEFAULT_OWNER_ID);
+                statement.setString(2, TokenIssuer.hash(probe.authToken));
+                statement.setInt(3, RemoteN2Agent.State.OFFLINE.value);
+                statement.addBatch();
+                probes.add(probe);
+            }
+            statement.executeBatch();
+        }
+        return probes;
+    }
+
+    /**
+     * The Agent Service, put into ready state without the ControlCentre
+     * warm-up so that the token cache starts cold.
+     */
+    static synchronized AgentService agentService() {
+        AgentService service = AgentService.getInstance();
+        if (!service.isServerReady()) {
+            service.readyServer();
+        }
+        return service;
+    }
+
+    /**
+     * A SClient that records what is sent to it instead of touching a socket.
+     */
+    static SClient stubClient(final ClientProbe probe) {
+        SClient client = mock(SClient.class, withSettings().stubOnly());
+        when(client.getRemoteHostAddress()).thenReturn(probe.host);
+        when(client.getRemotePort()).thenReturn(probe.port);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                probe.uuid = invocation.getArgument(0);
+                return null;
+            }
+        }).when(client).attachUuid(any(UUID.class));
+        when(client.getAttachedUuid()).thenAnswer(new Answer<UUID>() {
+            @Override
+            public UUID answer(InvocationOnMock invocation) {
+                return probe.uuid;
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                probe.onSend((SMessage) invocation.getArgument(0));
+                return null;
+            }
+        }).when(client).Send(any(SMessage.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                probe.onClose();
+                return null;
+            }
+        }).when(client).closeConnection();
+        return client;
+    }
+
+    /**
+     * A heartbeat stamped with the current time, as a healthy agent sends it.
+     */
+    static HeartBeatMessage heartBeat() {
+        return heartBeat(new AtomicLong());
+    }
+
+    /**
+     * A heartbeat stamped with the current time shifted by {@code skewMs},
+     * as sent by an agent whose clock is off.
+     */
+    static HeartBeatMessage heartBeat(final AtomicLong skewMs) {
+        HeartBeatMessage msg = mock(HeartBeatMessage.class, withSettings().stubOnly());
+        when(msg.getCreationTime()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return System.currentTimeMillis() + skewMs.get();
+            }
+        });
+        return msg;
+    }
+
+    static LoginMessage credentialsLogin() {
+        LoginMessage msg = mock(LoginMessage.class, withSettings().stubOnly());
+        when(msg.getMechanism()).thenReturn(LoginMessage.LoginMechanism.CREDENTIALS);
+        return msg;
+    }
+
+    /**
+     * A token login that always presents the probe's current token.
+     */
+    static LoginMessage tokenLogin(final ClientProbe probe) {
+        LoginMessage msg = mock(LoginMessage.class, withSettings().stubOnly());
+        when(msg.getMechanism()).thenReturn(LoginMessage.LoginMechanism.AUTH_TOKEN);
+        when(msg.getAuthToken()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return probe.authToken;
+            }
+        });
+        return msg;
+    }
+
+    /**
+     * Creates an agent and takes it through a successful login without the
+     * database, the way LoginPipeline completes a cached token login.
+     */
+    static RemoteN2Agent loggedInAgent(ClientProbe probe, int agentId) throws InterruptedException {
+        RemoteN2Agent agent = new RemoteN2Agent(stubClient(probe), agentId, RemoteN2Agent.DEFAULT_OWNER_ID);
+        CountDownLatch response = probe.expectLoginResponse();
+        agent.completeLogin();
+        response.await();
+        return agent;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginResponseMessage;
+import com.whileloop.sendit.messages.SMessage;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State behind a stubbed {@code SClient}: the attached session UUID, the
+ * token the simulated agent holds and what the Control Centre sent to it.
+ *
+ * @author sulochana
+ */
+final class ClientProbe {
+
+    final String host;
+    final int port;
+    final AtomicLong sent = new AtomicLong();
+    volatile UUID uuid;
+    volatile String authToken;
+    volatile SMessage lastMessage;
+    volatile Listener listener;
+    private volatile CountDownLatch loginLatch;
+
+    ClientProbe(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    void onSend(SMessage msg) {
+        sent.incrementAndGet();
+        lastMessage = msg;
+        CountDownLatch latch = loginLatch;
+        if (latch != null && msg instanceof LoginResponseMessage) {
+            latch.countDown();
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.onMessage(msg);
+        }
+    }
+
+    void onClose() {
+        Listener current = listener;
+        if (current != null) {
+            current.onClose();
+        }
+    }
+
+    /**
+     * Spins until more than {@code count} messages have been sent.
+     */
+    void awaitSent(long count) {
+        while (sent.get() <= count) {
+            Thread.yield();
+        }
+    }
+
+    CountDownLatch expectLoginResponse() {
+        CountDownLatch latch = new CountDownLatch(1);
+        loginLatch = latch;
+        return latch;
+    }
+
+    /**
+     * Receives what the Control Centre does to the stubbed connection.
+     */
+    interface Listener {
+
+        void onMessage(SMessage msg);
+
+        void onClose();
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.nyx2.messages.LoginResponseMessage;
+import com.whileloop.sendit.client.SClient;
+import com.whileloop.sendit.messages.SMessage;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.h2.api.Trigger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Login storms under each {@link DBExecutor.ExecutionMode}. One operation is
+ * every agent of the fleet presenting its token at once; each login then
+ * rotates its token synchronously in the registration stage, and an H2
+ * trigger holds every token UPDATE for {@code dbLatencyMs} to stand in for a
+ * database round trip. The logins/sec and login latency percentiles of each
+ * iteration are printed with its result.
+ * <p>
+ * Both modes share a 64 connection pool; PLATFORM runs the default 16 DB
+ * threads, VIRTUAL as many virtual threads as there are logins in flight.
+ *
+ * @author sulochana
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoginExecutionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Storm {
+
+        @Param({"PLATFORM", "VIRTUAL"})
+        public String mode;
+
+        @Param({"2000"})
+        public int agents;
+
+        @Param({"0", "5"})
+        public int dbLatencyMs;
+
+        AgentService service;
+        ClientProbe[] probes;
+        SClient[] clients;
+        LoginMessage[] logins;
+        long[] startedNanos;
+        long iterationStarted;
+        long failures;
+        final LatencyRecorder latency = new LatencyRecorder();
+        volatile CountDownLatch responses;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            // Read once when the service is created, so set before anything touches it
+            System.setProperty("N2CC_EXECUTION_MODE", mode);
+            System.setProperty("N2CC_DB_POOL_MAX", "64");
+            System.setProperty("N2CC_DB_QUEUE", String.valueOf(agents * 2));
+            System.setProperty("N2CC_TOKEN_ROTATION_DEFERRED", "false");
+            System.setProperty("N2CC_LOGIN_RATE", "1000000");
+            System.setProperty("N2CC_LOGIN_BURST", "1000000");
+            System.setProperty("N2CC_LOGIN_SOURCE_RATE", "1000000");
+            System.setProperty("N2CC_LOGIN_SOURCE_BURST", "1000000");
+            System.setProperty("N2CC_LOGIN_QUEUE", String.valueOf(agents * 2));
+            System.setProperty("N2CC_LOGIN_REGISTRATION_TIMEOUT_MS", "30000");
+
+            BenchmarkSupport.startDatabase();
+            DbLatency.latencyMs = dbLatencyMs;
+            try (Connection connection = DBConnection.getConnection();
+                    Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TRIGGER IF NOT EXISTS `agents_latency` BEFORE UPDATE ON `agents` "
+                        + "FOR EACH ROW CALL \"" + DbLatency.class.getName() + "\"");
+            }
+            service = BenchmarkSupport.agentService();
+
+            List<ClientProbe> seeded = BenchmarkSupport.seedAgents(agents);
+            probes = seeded.toArray(new ClientProbe[0]);
+            clients = new SClient[agents];
+            logins = new LoginMessage[agents];
+            startedNanos = new long[agents];
+            for (int i = 0; i < agents; i++) {
+                final int index = i;
+                probes[i].listener = new ClientProbe.Listener() {
+                    @Override
+                    public void onMessage(SMessage msg) {
+                        if (msg instanceof LoginResponseMessage) {
+                            latency.recordNanos(System.nanoTime() - startedNanos[index]);
+                            responses.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onClose() {
+                    }
+                };
+                clients[i] = BenchmarkSupport.stubClient(probes[i]);
+                logins[i] = BenchmarkSupport.tokenLogin(probes[i]);
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration() {
+            latency.snapshot(true);
+            failures = 0;
+            iterationStarted = System.nanoTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void report() {
+            double seconds = (System.nanoTime() - iterationStarted) / 1e9;
+            LatencyRecorder.Snapshot snapshot = latency.snapshot(true);
+            System.out.printf("%n%s: %.0f logins/s, p50 %.1fms p99 %.1fms, %d failed%n", mode,
+                    (snapshot.getCount() - failures) / seconds, snapshot.percentileMillis(50),
+                    snapshot.percentileMillis(99), failures);
+        }
+    }
+
+    @Benchmark
+    public void loginStorm(Storm storm) throws InterruptedException {
+        storm.responses = new CountDownLatch(storm.agents);
+        for (int i = 0; i < storm.agents; i++) {
+            storm.startedNanos[i] = System.nanoTime();
+            storm.service.OnMessage(null, storm.clients[i], storm.logins[i]);
+        }
+        if (!storm.responses.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(storm.responses.getCount() + " logins unanswered after 60s");
+        }
+
+        for (int i = 0; i < storm.agents; i++) {
+            RemoteN2Agent agent = RemoteN2Agent.findAgent(storm.probes[i].uuid);
+            if (agent == null) {
+                storm.failures++;
+                continue;
+            }
+            storm.probes[i].authToken = agent.getAuthToken();
+            storm.service.OnDisconnect(null, storm.clients[i]);
+        }
+    }
+
+    /**
+     * Delays every row update of {@code agents} by {@link #latencyMs}.
+     */
+    public static class DbLatency implements Trigger {
+
+        static volatile long latencyMs;
+
+        @Override
+        public void init(Connection conn, String schemaName, String triggerName, String tableName,
+                boolean before, int type) {
+        }
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow) {
+            if (latencyMs <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.HeartBeatMessage;
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.nyx2.messages.LoginResponseMessage;
+import com.whileloop.nyx2.messages.ServerStatusMessage;
+import com.whileloop.nyx2.messages.TerminationMessage;
+import com.whileloop.sendit.client.SClient;
+import com.whileloop.sendit.messages.SMessage;
+import io.netty.channel.EventLoop;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One agent of the {@link AgentSwarm}. An agent is pinned to a single event
+ * loop, the way a channel is, and everything it does (connecting, logging
+ * in, heart beating, dropping its connection) runs on that loop. Each
+ * connection is a fresh stubbed {@link SClient} so the Control Centre sees a
+ * new session on every reconnect. Nothing goes over a socket, see
+ * {@link AgentSwarm} for what that leaves out of the figures.
+ *
+ * @author sulochana
+ */
+final class SimulatedAgent {
+
+    private final AgentSwarm swarm;
+    private final EventLoop loop;
+    private final String host;
+    private final AtomicLong skewMs = new AtomicLong();
+    private final HeartBeatMessage heartBeat;
+    private String authToken;
+    private int generation = 0;
+    private Connection current;
+    private boolean stopped = false;
+
+    SimulatedAgent(AgentSwarm swarm, EventLoop loop, String host, String authToken, long skewMs) {
+        this.swarm = swarm;
+        this.loop = loop;
+        this.host = host;
+        this.authToken = authToken;
+        this.skewMs.set(skewMs);
+        this.heartBeat = BenchmarkSupport.heartBeat(this.skewMs);
+    }
+
+    void start(long delayMs) {
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopped = true;
+                disconnect();
+            }
+        });
+    }
+
+    private void connect() {
+        if (stopped || current != null) {
+            return;
+        }
+        generation++;
+        Connection connection = new Connection(new ClientProbe(host, 1024 + (generation % 64000)));
+        current = connection;
+        connection.open();
+    }
+
+    private void disconnect() {
+        Connection connection = current;
+        if (connection == null) {
+            return;
+        }
+        current = null;
+        connection.close();
+    }
+
+    private void reconnectLater() {
+        disconnect();
+        if (stopped) {
+            return;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(swarm.getReconnectMaxMs() + 1);
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Connection implements ClientProbe.Listener {
+
+        private final ClientProbe probe;
+        private final SClient client;
+        private final boolean tokenLogin;
+        private final AtomicInteger statusMessages = new AtomicInteger();
+        private boolean online = false;
+        private long loginStarted;
+        private ScheduledFuture<?> loginTimeout;
+        private ScheduledFuture<?> nextBeatTask;
+        private long nextBeat;
+        private volatile long beatIntended;
+
+        Connection(ClientProbe probe) {
+            this.probe = probe;
+            this.probe.authToken = authToken;
+            this.probe.listener = this;
+            this.client = BenchmarkSupport.stubClient(probe);
+            this.tokenLogin = authToken != null;
+        }
+
+        void open() {
+            swarm.getService().OnConnect(null, client);
+            swarm.getService().OnSSLHandshakeSuccess(null, client);
+
+            LoginMessage login = tokenLogin ? BenchmarkSupport.tokenLogin(probe) : swarm.getCredentialsLogin();
+            loginStarted = System.nanoTime();
+            loginTimeout = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (current == Connection.this && !online) {
+                        swarm.recordLoginTimeout();
+                        reconnectLater();
+                    }
+                }
+            }, swarm.getLoginTimeoutMs(), TimeUnit.MILLISECONDS);
+            swarm.getService().OnMessage(null, client, login);
+        }
+
+        void close() {
+            cancel(loginTimeout);
+            cancel(nextBeatTask);
+            if (online) {
+                online = false;
+                swarm.agentOffline();
+            }
+            swarm.getService().OnDisconnect(null, client);
+        }
+
+        @Override
+        public void onMessage(SMessage msg) {
+            if (msg instanceof ServerStatusMessage) {
+                statusMessages.incrementAndGet();
+            } else if (msg instanceof HeartBeatMessage) {
+                // Measured from when the beat was due, not when the loop got
+                // to it, so a backed up loop shows up as latency
+                swarm.recordHeartBeatEcho(System.nanoTime() - beatIntended);
+            } else if (msg instanceof LoginResponseMessage) {
+                final long finished = System.nanoTime();
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoginResponse(finished);
+                    }
+                });
+            } else if (msg instanceof TerminationMessage) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current == Connection.this) {
+                            swarm.recordTermination();
+                            // The operator fixes the clock before the agent comes back
+                            skewMs.set(0);
+                            reconnectLater();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onClose() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (current == Connection.this) {
+                        swarm.recordServerClose();
+                        reconnectLater();
+                    }
+                }
+            });
+        }
+
+        private void onLoginResponse(long finished) {
+            if (current != this || online) {
+                return;
+            }
+            cancel(loginTimeout);
+            RemoteN2Agent agent = RemoteN2Agent.findAgent(probe.uuid);
+            if (agent == null && statusMessages.get() > 1) {
+                // A second "not ready" status comes with an admission control
+                // rejection; the server closes the connection after the backoff
+                swarm.recordLoginRejected();
+                return;
+            }
+            if (agent == null) {
+                swarm.recordLoginFailure();
+                // Token rejected or the login failed; register afresh next time
+                authToken = null;
+                reconnectLater();
+                return;
+            }
+
+            online = true;
+            authToken = agent.getAuthToken();
+            swarm.recordLogin(tokenLogin, finished - loginStarted);
+            swarm.agentOnline();
+
+            long interval = swarm.getHeartBeatIntervalNanos();
+            nextBeat = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+            scheduleBeat();
+        }
+
+        private void scheduleBeat() {
+            nextBeatTask = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    beat();
+                }
+            }, nextBeat - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        private void beat() {
+            if (current != this || !online) {
+                return;
+            }
+            beatIntended = nextBeat;
+            nextBeat += swarm.getHeartBeatIntervalNanos();
+            swarm.getService().OnMessage(null, client, heartBeat);
+
+            if (ThreadLocalRandom.current().nextDouble() < swarm.getDropRate()) {
+                swarm.recordDrop();
+                reconnectLater();
+                return;
+            }
+            if (current == this) {
+                scheduleBeat();
+            }
+        }
+
+        private void cancel(ScheduledFuture<?> future) {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.sendit.client.SClient;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end token login: LoginMessage in, LoginResponseMessage out, with
+ * token lookups and the write-behind token rotation running against the
+ * in-memory database. Every
+ * login presents the token handed out by the previous one and the agent is
+ * disconnected afterwards so the registry stays at a steady size.
+ *
+ * @author sulochana
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class TokenLoginBenchmark {
+
+    static {
+        // Measure the login path itself, not the admission control pacing
+        System.setProperty("N2CC_LOGIN_RATE", "1000000");
+        System.setProperty("N2CC_LOGIN_BURST", "1000000");
+    }
+
+    @State(Scope.Benchmark)
+    public static class Fleet {
+
+        @Param({"5000"})
+        public int agents;
+
+        AgentService service;
+        ClientProbe[] probes;
+        SClient[] clients;
+        LoginMessage[] logins;
+        final AtomicInteger cursor = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkSupport.startDatabase();
+            service = BenchmarkSupport.agentService();
+            List<ClientProbe> seeded = BenchmarkSupport.seedAgents(agents);
+            probes = seeded.toArray(new ClientProbe[0]);
+            clients = new SClient[agents];
+            logins = new LoginMessage[agents];
+            for (int i = 0; i < agents; i++) {
+                clients[i] = BenchmarkSupport.stubClient(probes[i]);
+                logins[i] = BenchmarkSupport.tokenLogin(probes[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean tokenLogin(Fleet fleet) throws InterruptedException {
+        int index = Math.abs(fleet.cursor.getAndIncrement() % fleet.agents);
+        ClientProbe probe = fleet.probes[index];
+        SClient client = fleet.clients[index];
+        // Two benchmark threads may pick the same agent after a wrap-around
+        synchronized (probe) {
+            CountDownLatch response = probe.expectLoginResponse();
+            fleet.service.OnMessage(null, client, fleet.logins[index]);
+            if (!response.await(10, TimeUnit.SECONDS)) {
+                return false;
+            }
+            RemoteN2Agent agent = RemoteN2Agent.findAgent(probe.uuid);
+            if (agent == null) {
+                return false;
+            }
+            probe.authToken = agent.getAuthToken();
+            fleet.service.OnDisconnect(null, client);
+            return true;
+        }
+    }
+
+}
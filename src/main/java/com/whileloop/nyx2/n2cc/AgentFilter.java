@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects logged in agents by owner, state and agent_id. Criteria that are
+ * not set match every agent, so {@code new AgentFilter()} selects the whole
+ * fleet.
+ *
+ * @author sulochana
+ */
+public final class AgentFilter {
+
+    private Integer ownerId;
+    private RemoteN2Agent.State state;
+    private Set<Integer> agentIds;
+
+    public AgentFilter owner(int ownerId) {
+        this.ownerId = ownerId;
+        return this;
+    }
+
+    public AgentFilter state(RemoteN2Agent.State state) {
+        this.state = state;
+        return this;
+    }
+
+    public AgentFilter agentIds(Collection<Integer> agentIds) {
+        this.agentIds = Collections.unmodifiableSet(new HashSet<>(agentIds));
+        return this;
+    }
+
+    public boolean matches(RemoteN2Agent agent) {
+        return (ownerId == null || agent.getOwnerId() == ownerId)
+                && (state == null || agent.getState() == state)
+                && (agentIds == null || agentIds.contains(agent.getAgentId()));
+    }
+
+    /**
+     * The matching agents, looked up through the narrowest registry index
+     * the filter allows.
+     */
+    List<RemoteN2Agent> select(AgentRegistry registry) {
+        List<RemoteN2Agent> candidates;
+        if (agentIds != null) {
+            candidates = new ArrayList<>(agentIds.size());
+            for (int agentId : agentIds) {
+                RemoteN2Agent agent = registry.findByAgentId(agentId);
+                if (agent != null) {
+                    candidates.add(agent);
+                }
+            }
+        } else if (ownerId != null) {
+            candidates = registry.findByOwner(ownerId);
+        } else {
+            candidates = registry.snapshot();
+        }
+
+        List<RemoteN2Agent> selected = new ArrayList<>(candidates.size());
+        for (RemoteN2Agent agent : candidates) {
+            if (matches(agent)) {
+                selected.add(agent);
+            }
+        }
+        return selected;
+    }
+
+}
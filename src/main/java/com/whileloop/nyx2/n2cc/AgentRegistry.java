@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Registry of logged in agents. Lookups never lock: the primary index by
+ * session UUID and the secondary indexes by agent id, owner id and remote
+ * address are all concurrent maps, so message routing on the worker threads
+ * does not contend with registrations and disconnects.
+ *
+ * @author sulochana
+ */
+public final class AgentRegistry {
+
+    private final ConcurrentHashMap<UUID, RemoteN2Agent> byUuid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, RemoteN2Agent> byAgentId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<RemoteN2Agent>> byOwner = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<RemoteN2Agent>> byRemoteAddress = new ConcurrentHashMap<>();
+
+    public void register(RemoteN2Agent agent) {
+        byUuid.put(agent.getAgentUUID(), agent);
+        byAgentId.put(agent.getAgentId(), agent);
+        addToIndex(byOwner, agent.getOwnerId(), agent);
+        addToIndex(byRemoteAddress, agent.getRemoteAddress(), agent);
+    }
+
+    public RemoteN2Agent deregister(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        RemoteN2Agent agent = byUuid.remove(uuid);
+        if (agent == null) {
+            return null;
+        }
+        byAgentId.remove(agent.getAgentId(), agent);
+        removeFromIndex(byOwner, agent.getOwnerId(), agent);
+        removeFromIndex(byRemoteAddress, agent.getRemoteAddress(), agent);
+        return agent;
+    }
+
+    /**
+     * Removes {@code agent}, unless its UUID has meanwhile been taken over by
+     * another agent.
+     */
+    public boolean deregister(RemoteN2Agent agent) {
+        if (!byUuid.remove(agent.getAgentUUID(), agent)) {
+            return false;
+        }
+        byAgentId.remove(agent.getAgentId(), agent);
+        removeFromIndex(byOwner, agent.getOwnerId(), agent);
+        removeFromIndex(byRemoteAddress, agent.getRemoteAddress(), agent);
+        return true;
+    }
+
+    /**
+     * Runs {@code update} unless another session has registered under the
+     * agent id of {@code agent}. Atomic with {@link #register}, so a session
+     * that writes its state after registering always writes last.
+     */
+    public void runIfCurrent(final RemoteN2Agent agent, final Runnable update) {
+        byAgentId.compute(agent.getAgentId(), new BiFunction<Integer, RemoteN2Agent, RemoteN2Agent>() {
+            @Override
+            public RemoteN2Agent apply(Integer agentId, RemoteN2Agent current) {
+                if (current == null || current == agent) {
+                    update.run();
+                }
+                return current;
+            }
+        });
+    }
+
+    public RemoteN2Agent find(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        return byUuid.get(uuid);
+    }
+
+    public RemoteN2Agent findByAgentId(int agentId) {
+        return byAgentId.get(agentId);
+    }
+
+    public List<RemoteN2Agent> findByOwner(int ownerId) {
+        return snapshotOf(byOwner.get(ownerId));
+    }
+
+    public List<RemoteN2Agent> findByRemoteAddress(String address) {
+        if (address == null) {
+            return Collections.emptyList();
+        }
+        return snapshotOf(byRemoteAddress.get(address));
+    }
+
+    /**
+     * Weakly consistent copy of every registered agent. Safe to iterate while
+     * agents come and go.
+     */
+    public List<RemoteN2Agent> snapshot() {
+        return new ArrayList<>(byUuid.values());
+    }
+
+    public int size() {
+        return byUuid.size();
+    }
+
+    private static List<RemoteN2Agent> snapshotOf(Set<RemoteN2Agent> agents) {
+        if (agents == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(agents);
+    }
+
+    private static <K> void addToIndex(ConcurrentHashMap<K, Set<RemoteN2Agent>> index, K key, final RemoteN2Agent agent) {
+        if (key == null) {
+            return;
+        }
+        // compute runs atomically per key, so a concurrent removal can not
+        // drop the set between creating it and adding the agent
+        index.compute(key, new BiFunction<K, Set<RemoteN2Agent>, Set<RemoteN2Agent>>() {
+            @Override
+            public Set<RemoteN2Agent> apply(K k, Set<RemoteN2Agent> agents) {
+                if (agents == null) {
+                    agents = Collections.newSetFromMap(new ConcurrentHashMap<RemoteN2Agent, Boolean>());
+                }
+                agents.add(agent);
+                return agents;
+            }
+        });
+    }
+
+    private static <K> void removeFromIndex(ConcurrentHashMap<K, Set<RemoteN2Agent>> index, K key, final RemoteN2Agent agent) {
+        if (key == null) {
+            return;
+        }
+        index.computeIfPresent(key, new BiFunction<K, Set<RemoteN2Agent>, Set<RemoteN2Agent>>() {
+            @Override
+            public Set<RemoteN2Agent> apply(K k, Set<RemoteN2Agent> agents) {
+                agents.remove(agent);
+                return agents.isEmpty() ? null : agents;
+            }
+        });
+    }
+
+}
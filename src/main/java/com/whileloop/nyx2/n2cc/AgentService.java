@@ -23,8 +23,8 @@
  */
 package com.whileloop.nyx2.n2cc;
 
+import com.whileloop.nyx2.messages.HeartBeatMessage;
 import com.whileloop.nyx2.messages.LoginMessage;
-import com.whileloop.nyx2.messages.LoginResponseMessage;
 import com.whileloop.nyx2.messages.ServerStatusMessage;
 import com.whileloop.nyx2.utils.NX2Logger;
 import com.whileloop.sendit.callbacks.SServerCallback;
@@ -32,44 +32,160 @@ import com.whileloop.sendit.client.SClient;
 import com.whileloop.sendit.messages.SMessage;
 import com.whileloop.sendit.server.SServer;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.security.cert.CertificateException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.File;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import javax.net.ssl.SSLException;
 
 /**
+ * The agent listener and everything behind it. Netty runs a boss group that
+ * accepts connections and a worker group that serves them; the worker loops
+ * also run all of the Control Centre's timers (heartbeat wheel, login
+ * admission, write-behind flushes and checkpoints), so there is no separate
+ * timer thread.
+ * <p>
+ * The listener is bound as soon as the service is created, but agents are
+ * told the server is not ready and logins wait in admission until
+ * {@link #readyServer()} is called once the {@link ControlCentre} has warmed
+ * up the database pool, token cache and session snapshot.
  *
  * @author sulochana
  */
 public class AgentService extends NX2Logger implements SServerCallback {
 
+    private static final HotPathLogger log = HotPathLogger.getLogger(AgentService.class);
+
     private final NioEventLoopGroup bossGroup;
     private final NioEventLoopGroup workerGroup;
+    private final DBExecutor dbExecutor;
+    private final AgentExecutor agentExecutor;
+    private final MessageDispatcher dispatcher;
+    private final Broadcaster broadcaster;
+    private final AuthTokenCache tokenCache;
+    private final AgentStateWriter stateWriter;
+    private final TelemetryIngestor telemetry;
+    private final FleetStatus fleetStatus = new FleetStatus();
+    private final SessionSnapshot sessionSnapshot;
+    private final RegistrationBatcher registrationBatcher;
+    private final LoginPipeline loginPipeline;
+    private final LoginAdmission loginAdmission;
     private final static AgentService instance = new AgentService();
     private SServer agentService;
     private final int serverPort;
-    private boolean serverReady;
+    private final int tokenCacheSize;
+    private volatile boolean serverReady;
+    // Connections told the server is not ready, guarded by itself
+    private final Set<SClient> awaitingReady = new HashSet<>();
 
     public AgentService() {
         this.serverReady = false;
         this.setVerboseLevel(Loglevel.INFO);
-        this.bossGroup = new NioEventLoopGroup();
-        this.workerGroup = new NioEventLoopGroup();
-        this.serverPort = 3000;
+        this.serverPort = ControlCentreConfig.getInt("N2CC_AGENT_PORT", 3000);
+        // One listening socket is only ever served by one boss loop
+        this.bossGroup = new NioEventLoopGroup(ControlCentreConfig.getInt("N2CC_BOSS_THREADS", 1),
+                new DefaultThreadFactory("n2cc-boss"));
+        // 0 lets Netty pick twice the number of cores
+        this.workerGroup = new NioEventLoopGroup(ControlCentreConfig.getInt("N2CC_WORKER_THREADS", 0),
+                new DefaultThreadFactory("n2cc-worker"));
+        this.workerGroup.setIoRatio(ControlCentreConfig.getInt("N2CC_WORKER_IO_RATIO", 50));
+        RemoteN2Agent.startHeartbeatTracking(this.workerGroup.next());
+        this.agentExecutor = new AgentExecutor(ControlCentreConfig.getInt("N2CC_AGENT_THREADS",
+                Runtime.getRuntime().availableProcessors()));
+        this.dispatcher = new MessageDispatcher();
+        registerMessageHandlers();
+        this.broadcaster = new Broadcaster(RemoteN2Agent.getRegistry(), this.agentExecutor,
+                ControlCentreConfig.getInt("N2CC_BROADCAST_BATCH_SIZE", 256));
+        this.dbExecutor = new DBExecutor(
+                ControlCentreConfig.getEnum("N2CC_EXECUTION_MODE", DBExecutor.ExecutionMode.class,
+                        DBExecutor.ExecutionMode.PLATFORM),
+                ControlCentreConfig.getInt("N2CC_DB_THREADS", 16),
+                ControlCentreConfig.getInt("N2CC_DB_QUEUE", 1024));
+        this.stateWriter = new AgentStateWriter(this.dbExecutor,
+                ControlCentreConfig.getInt("N2CC_STATE_BATCH_SIZE", 500),
+                ControlCentreConfig.getLong("N2CC_STATE_FLUSH_INTERVAL_MS", 1000));
+        this.telemetry = new TelemetryIngestor(this.dbExecutor,
+                ControlCentreConfig.getInt("N2CC_TELEMETRY_BUFFER", 65536),
+                ControlCentreConfig.getLong("N2CC_TELEMETRY_FLUSH_INTERVAL_MS", 1000),
+                ControlCentreConfig.getInt("N2CC_TELEMETRY_MAX_SAMPLES_PER_FLUSH", 50000),
+                ControlCentreConfig.getInt("N2CC_TELEMETRY_MIN_CHUNK_SAMPLES", 60),
+                ControlCentreConfig.getLong("N2CC_TELEMETRY_MAX_CHUNK_AGE_MS", 300000));
+        if (!ControlCentreConfig.getBoolean("N2CC_SESSION_SNAPSHOT_ENABLED", true)) {
+            this.sessionSnapshot = null;
+        } else {
+            this.sessionSnapshot = new SessionSnapshot(
+                    new File(ControlCentreConfig.getString("N2CC_SESSION_SNAPSHOT", "n2cc-sessions.snap")),
+                    this.dbExecutor, RemoteN2Agent.getRegistry(), this.fleetStatus,
+                    ControlCentreConfig.getLong("N2CC_SESSION_SNAPSHOT_INTERVAL_MS", 5000),
+                    ControlCentreConfig.getLong("N2CC_SESSION_MAX_AGE_MS", 600000));
+        }
+        this.tokenCacheSize = ControlCentreConfig.getInt("N2CC_TOKEN_CACHE_SIZE", 100000);
+        this.tokenCache = new AuthTokenCache(this.tokenCacheSize,
+                ControlCentreConfig.getLong("N2CC_TOKEN_CACHE_TTL_MS", 600000));
+        long registrationTimeoutMs = ControlCentreConfig.getLong("N2CC_LOGIN_REGISTRATION_TIMEOUT_MS", 5000);
+        this.registrationBatcher = new RegistrationBatcher(this.dbExecutor, this.workerGroup,
+                ControlCentreConfig.getInt("N2CC_REGISTRATION_BATCH_SIZE", 100),
+                ControlCentreConfig.getLong("N2CC_REGISTRATION_LINGER_MS", 20),
+                LoginPipeline.toQueryTimeout(registrationTimeoutMs));
+        this.loginPipeline = new LoginPipeline(this.dbExecutor, this.workerGroup, this.tokenCache,
+                this.sessionSnapshot,
+                ControlCentreConfig.getBoolean("N2CC_TOKEN_ROTATION_DEFERRED", false) ? this.stateWriter : null,
+                this.registrationBatcher,
+                ControlCentreConfig.getLong("N2CC_LOGIN_AUTH_TIMEOUT_MS", 5000),
+                registrationTimeoutMs,
+                ControlCentreConfig.getBoolean("N2CC_TOKEN_LEGACY_LOOKUP", false));
+        this.loginAdmission = new LoginAdmission(this.loginPipeline, this.workerGroup,
+                ControlCentreConfig.getInt("N2CC_LOGIN_RATE", 200),
+                ControlCentreConfig.getInt("N2CC_LOGIN_BURST", 50),
+                ControlCentreConfig.getInt("N2CC_LOGIN_SOURCE_RATE", 50),
+                ControlCentreConfig.getInt("N2CC_LOGIN_SOURCE_BURST", 500),
+                ControlCentreConfig.getInt("N2CC_LOGIN_QUEUE", 2000),
+                ControlCentreConfig.getLong("N2CC_LOGIN_QUEUE_TIMEOUT_MS", 10000),
+                ControlCentreConfig.getLong("N2CC_LOGIN_BACKOFF_BASE_MS", 1000),
+                ControlCentreConfig.getLong("N2CC_LOGIN_BACKOFF_MAX_MS", 60000));
+        this.loginAdmission.start();
+        registerMetrics();
 
         try {
-            startService();
-            readyServer();
+            if (ControlCentreConfig.getBoolean("N2CC_AGENT_LISTEN", true)) {
+                startService();
+            } else {
+                warn("N2CC_AGENT_LISTEN is false. Agent Service is not accepting connections");
+            }
         } catch (Exception ex) {
             crit("Failed to start agent service on port %d: %s", this.serverPort, ex.getMessage());
             shutdownService();
         }
     }
 
+    /**
+     * Starts the writers that need the database, admits logins and tells the
+     * connections that were told otherwise during the warm-up that the
+     * server is ready. Call once the database is connected.
+     */
     public final void readyServer() {
+        if (this.serverReady) {
+            return;
+        }
         debug("Putting Agent Service into Ready state");
-        this.serverReady = true;
+        this.stateWriter.start(this.workerGroup);
+        if (ControlCentreConfig.getBoolean("N2CC_TELEMETRY_ENABLED", false)) {
+            this.telemetry.start(this.workerGroup);
+        }
+        List<SClient> waiting;
+        synchronized (awaitingReady) {
+            this.serverReady = true;
+            waiting = new ArrayList<>(awaitingReady);
+            awaitingReady.clear();
+        }
+        this.loginAdmission.open();
+        for (SClient client : waiting) {
+            Outbound.send(client, new ServerStatusMessage(true));
+        }
         info("---------- Agent Service READY ----------");
     }
 
@@ -77,17 +193,229 @@ public class AgentService extends NX2Logger implements SServerCallback {
         return serverReady;
     }
 
+    /**
+     * Loads the sessions of the previous run and starts checkpointing. Does
+     * not need the database, so it can run while the pool connects.
+     */
+    void loadSessionSnapshot() {
+        if (this.sessionSnapshot != null) {
+            this.sessionSnapshot.start(this.workerGroup);
+        }
+    }
+
+    /**
+     * Fills the token cache with the tokens of the most recently registered
+     * agents, up to {@code N2CC_TOKEN_CACHE_PRELOAD} (the cache size by
+     * default, 0 to skip). Needs the database.
+     *
+     * @return the number of tokens loaded
+     */
+    int preloadTokenCache() throws SQLException {
+        int maxRows = Math.min(this.tokenCacheSize,
+                ControlCentreConfig.getInt("N2CC_TOKEN_CACHE_PRELOAD", this.tokenCacheSize));
+        if (maxRows <= 0) {
+            return 0;
+        }
+        return this.loginPipeline.preloadTokenCache(maxRows,
+                ControlCentreConfig.getInt("N2CC_TOKEN_CACHE_PRELOAD_FETCH_SIZE", 1000));
+    }
+
     public final void shutdownService() {
         debug("Shutting down Agent Service");
+        this.loginAdmission.shutdown();
+        if (this.sessionSnapshot != null) {
+            // Before the event loops close the connections and empty the registry
+            this.sessionSnapshot.shutdown();
+        }
         this.bossGroup.shutdownGracefully();
         this.workerGroup.shutdownGracefully();
+        for (RemoteN2Agent agent : RemoteN2Agent.getRegistry().snapshot()) {
+            this.stateWriter.record(agent.getAgentId(), RemoteN2Agent.State.OFFLINE);
+        }
+        this.agentExecutor.shutdown();
+        this.telemetry.shutdown();
+        this.stateWriter.shutdown();
+        this.dbExecutor.shutdown();
+        AsyncLogAppender.getInstance().shutdown();
         debug("Agent Service shutdown complete");
     }
 
+    private void registerMessageHandlers() {
+        dispatcher.register(HeartBeatMessage.class, new MessageHandler<HeartBeatMessage>() {
+            @Override
+            public void handle(RemoteN2Agent agent, HeartBeatMessage msg) {
+                agent.handleHeartBeatMessage(msg);
+            }
+        });
+    }
+
+    private void registerMetrics() {
+        Metrics.gauge("n2cc_server_ready", "1 once the Agent Service admits logins", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return serverReady ? 1 : 0;
+            }
+        });
+        Metrics.gauge("n2cc_connected_agents", "Agents logged in to this Control Centre", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return RemoteN2Agent.getRegistry().size();
+            }
+        });
+        Metrics.gauge("n2cc_worker_loop_pending_tasks", "Tasks queued on the worker event loops", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return Metrics.pendingTasks(workerGroup);
+            }
+        });
+        Metrics.gauge("n2cc_boss_loop_pending_tasks", "Tasks queued on the boss event loops", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return Metrics.pendingTasks(bossGroup);
+            }
+        });
+        Metrics.gauge("n2cc_login_queue_depth", "Logins waiting for admission", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return loginAdmission.getQueueDepth();
+            }
+        });
+        Metrics.gauge("n2cc_agent_executor_queued_tasks", "Agent work waiting for an agent thread", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return agentExecutor.getQueuedTasks();
+            }
+        });
+        Metrics.gauge("n2cc_telemetry_buffered_samples", "Telemetry samples waiting to be written", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return telemetry.getBufferedCount();
+            }
+        });
+        Metrics.gauge("n2cc_telemetry_lag_seconds", "Time since the last telemetry flush while samples are waiting", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return telemetry.getLagMillis() / 1000.0;
+            }
+        });
+        Metrics.gauge("n2cc_log_buffered_messages", "Hot path log messages waiting to be written", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return AsyncLogAppender.getInstance().getBufferedCount();
+            }
+        });
+        Metrics.gauge("n2cc_db_executor_queue_depth", "Tasks waiting for a DB executor thread", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return dbExecutor.getQueueDepth();
+            }
+        });
+        Metrics.gauge("n2cc_db_executor_active_tasks", "DB executor tasks running", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return dbExecutor.getActiveCount();
+            }
+        });
+        Metrics.gauge("n2cc_state_writer_pending", "Agent state changes waiting to be flushed", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return stateWriter.getPendingCount();
+            }
+        });
+        Metrics.counter("n2cc_registration_batches_total", "Registration group commits", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return registrationBatcher.getBatches();
+            }
+        });
+        Metrics.gauge("n2cc_token_pool_size", "Pre-generated auth tokens ready to be issued", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return TokenIssuer.getInstance().getPoolSize();
+            }
+        });
+        Metrics.counter("n2cc_token_pool_misses_total", "Auth tokens generated on the login path", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return TokenIssuer.getInstance().getPoolMisses();
+            }
+        });
+        if (sessionSnapshot != null) {
+            Metrics.gauge("n2cc_session_snapshot_resumable", "Sessions of the previous run not yet resumed", new MetricGauge.Source() {
+                @Override
+                public double value() {
+                    return sessionSnapshot.getResumableCount();
+                }
+            });
+            Metrics.counter("n2cc_session_resumes_total", "Token logins resumed from the session snapshot", new MetricGauge.Source() {
+                @Override
+                public double value() {
+                    return sessionSnapshot.getResumes();
+                }
+            });
+        }
+        Metrics.counter("n2cc_token_cache_hits_total", "Token logins answered from the token cache", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return tokenCache.getHits();
+            }
+        });
+        Metrics.counter("n2cc_token_cache_misses_total", "Token logins that had to query the database", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return tokenCache.getMisses();
+            }
+        });
+    }
+
     private void startService() throws CertificateException, SSLException, InterruptedException {
         debug("Attempting to start Agent Service on port: %d", this.serverPort);
         agentService = new SServer(this.serverPort, this.workerGroup, this.bossGroup, this);
-        info("Agent Service started on port: %d", this.serverPort);
+        info("Agent Service started on port: %d with %d boss and %d worker event loops", this.serverPort,
+                this.bossGroup.executorCount(), this.workerGroup.executorCount());
+    }
+
+    AgentExecutor getAgentExecutor() {
+        return agentExecutor;
+    }
+
+    /**
+     * Message routing for logged in agents. Register a {@link MessageHandler}
+     * here to handle a new message type.
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Sends a message to every logged in agent matching a filter.
+     */
+    public Broadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    /**
+     * Telemetry ingestion. A {@link MessageHandler} for a new agent message
+     * type feeds it by calling {@link TelemetryIngestor#offer}.
+     */
+    public TelemetryIngestor getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Status of every agent seen since startup, queryable without the
+     * database.
+     */
+    public FleetStatus getFleetStatus() {
+        return fleetStatus;
+    }
+
+    public AgentStateWriter getStateWriter() {
+        return stateWriter;
+    }
+
+    public AuthTokenCache getTokenCache() {
+        return tokenCache;
     }
 
     public static AgentService getInstance() {
@@ -96,25 +424,36 @@ public class AgentService extends NX2Logger implements SServerCallback {
 
     @Override
     public void OnConnect(SServer server, SClient client) {
-        debug("Client connection from %s", getClientConnectionInfo(client));
+        if (log.isDebugEnabled()) {
+            log.debug("Client connection from %s", getClientConnectionInfo(client));
+        }
     }
 
     @Override
     public void OnDisconnect(SServer server, SClient client) {
-        debug("Client disconnected %s", getClientConnectionInfo(client));
-        RemoteN2Agent agent = RemoteN2Agent.findAgent(client.getAttachedUuid());
+        if (log.isDebugEnabled()) {
+            log.debug("Client disconnected %s", getClientConnectionInfo(client));
+        }
+        if (!serverReady) {
+            synchronized (awaitingReady) {
+                awaitingReady.remove(client);
+            }
+        }
+        loginAdmission.cancel(client);
+        loginPipeline.cancel(client);
+        RemoteN2Agent agent = RemoteN2Agent.getRegistry().deregister(client.getAttachedUuid());
         if (agent == null) {
-            debug("Ignoring disconnection of unknown client %s", getClientConnectionInfo(client));
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring disconnection of unknown client %s", getClientConnectionInfo(client));
+            }
             return;
         }
 
         agent.OnDisconnect();
-        RemoteN2Agent.deregisterAgent(client.getAttachedUuid());
     }
 
     @Override
     public void OnMessage(SServer server, SClient client, SMessage msg) {
-        debug("OnMessage");
         if (msg instanceof LoginMessage) {
             handleLoginMessage(client, (LoginMessage) msg);
             return;
@@ -122,7 +461,10 @@ public class AgentService extends NX2Logger implements SServerCallback {
 
         RemoteN2Agent agent = RemoteN2Agent.findAgent(client.getAttachedUuid());
         if (agent == null) {
-            debug("Ignoring %s from unknown client %s", msg.getClass().getName(), getClientConnectionInfo(client));
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring %s from unknown client %s", msg.getClass().getName(),
+                        getClientConnectionInfo(client));
+            }
             return;
         }
 
@@ -131,68 +473,50 @@ public class AgentService extends NX2Logger implements SServerCallback {
 
     @Override
     public void OnError(SServer server, SClient client, Throwable cause) {
-        debug("OnError");
+        if (log.isDebugEnabled()) {
+            log.debug("Connection error on %s: %s", getClientConnectionInfo(client), cause);
+        }
     }
 
     @Override
     public void OnEvent(SServer server, SClient client, Object event) {
-        debug("OnEvent");
+        log.debug("OnEvent");
     }
 
     @Override
     public void OnSSLHandshakeSuccess(SServer server, SClient client) {
-        debug("Secure Connection established with client %s using CS: {@%s} PT: {@%s}",
-                getClientConnectionInfo(client),
-                client.getCipherSuite(), client.getProtocol());
-        debug("Sending ServerStatusMessage to %s", getClientConnectionInfo(client));
-        client.Send(new ServerStatusMessage(this.isServerReady()));
+        if (log.isDebugEnabled()) {
+            log.debug("Secure Connection established with client %s using CS: {@%s} PT: {@%s}",
+                    getClientConnectionInfo(client), client.getCipherSuite(), client.getProtocol());
+        }
+        if (!serverReady) {
+            synchronized (awaitingReady) {
+                // Sent under the lock so readyServer's update cannot overtake it
+                if (!serverReady) {
+                    awaitingReady.add(client);
+                    Outbound.send(client, new ServerStatusMessage(false));
+                    return;
+                }
+            }
+        }
+        Outbound.send(client, new ServerStatusMessage(true));
     }
 
     @Override
     public void OnSSLHandshakeFailure(SServer server, SClient client) {
-        debug("OnSSLHandshakeFailure");
+        log.debug("OnSSLHandshakeFailure");
     }
 
     private String getClientConnectionInfo(SClient client) {
-        return String.format("%s:%d", client.getRemoteHostAddress(), client.getRemotePort());
+        return client.getRemoteHostAddress() + ":" + client.getRemotePort();
     }
 
     private void handleLoginMessage(SClient client, LoginMessage msg) {
-        debug("LoginMessage recieved from: %s. Mechanism: %s",
-                getClientConnectionInfo(client), msg.getMechanism().toString());
-
-        LoginResponseMessage.ResponseType response;
-        int agentId = -1;
-        if (msg.getMechanism() == LoginMessage.LoginMechanism.CREDENTIALS) {
-            response = LoginResponseMessage.ResponseType.SUCCESS;
-        } else {
-            try {
-                String sql = "SELECT `agent_id` FROM `agents` WHERE `auth_token` = ?;";
-                PreparedStatement statement = DBConnection.getConnection().prepareStatement(sql,
-                        ResultSet.TYPE_SCROLL_INSENSITIVE,
-                        ResultSet.CONCUR_READ_ONLY);
-                statement.setString(1, msg.getAuthToken());
-                statement.executeQuery();
-                ResultSet resultSet = statement.getResultSet();
-                resultSet.last();
-                if (resultSet.getRow() != 0) {
-                    agentId = resultSet.getInt("agent_id");
-                    response = LoginResponseMessage.ResponseType.SUCCESS;
-                } else {
-                    response = LoginResponseMessage.ResponseType.AUTH_TOKEN_EXPIRED;
-                }
-            } catch (SQLException ex) {
-                crit("Failed to authenticate NX2Agent using AUTH_TOKEN: %s", ex.getMessage());
-                response = LoginResponseMessage.ResponseType.INTERNAL_ERROR;
-            }
+        if (log.isDebugEnabled()) {
+            log.debug("LoginMessage recieved from: %s. Mechanism: %s", getClientConnectionInfo(client),
+                    msg.getMechanism());
         }
-
-        if (response != LoginResponseMessage.ResponseType.SUCCESS) {
-            client.Send(new LoginResponseMessage(response));
-            return;
-        }
-
-        RemoteN2Agent remoteClient = new RemoteN2Agent(client, agentId);
+        loginAdmission.submit(client, msg);
     }
 
 }
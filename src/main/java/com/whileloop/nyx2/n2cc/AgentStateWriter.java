@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind persistence of agent state transitions, auth token rotations
+ * and confirmations that an agent received its rotated token. Changes are
+ * coalesced per agentId, so an agent that flaps between flushes costs a
+ * single row update, and pending changes are written in JDBC batches on the
+ * DB executor every flush interval or as soon as a full batch is waiting.
+ * <p>
+ * A deferred token rotation leaves a window of up to one flush interval in
+ * which {@code agents.auth_token} still holds the previous hash while the
+ * agent already holds only the new token. A crash inside that window loses
+ * the agent's identity: its token was never stored, so it can only come back
+ * by enrolling again. Token rotations are therefore written synchronously
+ * before the LoginResponse unless {@code N2CC_TOKEN_ROTATION_DEFERRED} is
+ * set, which is only safe for fleets that can re-enroll unattended.
+ *
+ * @author sulochana
+ */
+public final class AgentStateWriter extends NX2Logger {
+
+    private final ConcurrentHashMap<Integer, RemoteN2Agent.State> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, TokenRotation> pendingTokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> pendingConfirmations = new ConcurrentHashMap<>();
+    private final Executor dbExecutor;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Not synchronized: a virtual thread blocked on JDBC inside a monitor pins its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } finally {
+                flushScheduled.set(false);
+            }
+        }
+    };
+    private ScheduledFuture<?> ticker;
+
+    public AgentStateWriter(Executor dbExecutor, int batchSize, long flushIntervalMs) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.dbExecutor = dbExecutor;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        this.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                requestFlush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        info("Agent state writer started. flush interval: %dms batch size: %d", flushIntervalMs, batchSize);
+    }
+
+    public void record(int agentId, RemoteN2Agent.State state) {
+        if (agentId < 0) {
+            return;
+        }
+        pending.put(agentId, state);
+        if (pending.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Queues an update of the agent's {@code auth_token} to
+     * {@code tokenHash}, the {@link TokenIssuer#hash(String)} of its new
+     * token, keeping {@code previousHash}, the token it logged in with, as
+     * {@code previous_auth_token}.
+     */
+    public void recordTokenRotation(int agentId, String tokenHash, String previousHash) {
+        if (agentId < 0) {
+            return;
+        }
+        pendingTokens.put(agentId, new TokenRotation(tokenHash, previousHash));
+        if (pendingTokens.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Queues clearing the agent's {@code previous_auth_token} once it has
+     * shown it received its rotated token, unless a later rotation has
+     * replaced {@code previousHash} meanwhile.
+     */
+    public void recordTokenConfirmed(int agentId, String previousHash) {
+        if (agentId < 0) {
+            return;
+        }
+        pendingConfirmations.put(agentId, previousHash);
+        if (pendingConfirmations.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything still pending on the
+     * calling thread.
+     */
+    public void shutdown() {
+        if (this.ticker != null) {
+            this.ticker.cancel(false);
+        }
+        flush();
+        info("Agent state writer stopped. %d rows written in %d batches", rowsWritten.get(), batchesWritten.get());
+    }
+
+    public int getPendingCount() {
+        return pending.size() + pendingTokens.size() + pendingConfirmations.size();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    private void requestFlush() {
+        if ((pending.isEmpty() && pendingTokens.isEmpty() && pendingConfirmations.isEmpty())
+                || !flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dbExecutor.execute(flushTask);
+        } catch (RejectedExecutionException ex) {
+            flushScheduled.set(false);
+            debug("DB executor saturated. Deferring state flush of %d agents", getPendingCount());
+        }
+    }
+
+    private void flush() {
+        flushLock.lock();
+        try {
+            drainPending();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void drainPending() {
+        while (!pending.isEmpty() || !pendingTokens.isEmpty() || !pendingConfirmations.isEmpty()) {
+            List<Integer> stateIds = new ArrayList<>();
+            List<RemoteN2Agent.State> states = new ArrayList<>();
+            List<Integer> tokenIds = new ArrayList<>();
+            List<TokenRotation> tokens = new ArrayList<>();
+            List<Integer> confirmedIds = new ArrayList<>();
+            List<String> confirmed = new ArrayList<>();
+            take(pending, stateIds, states);
+            take(pendingTokens, tokenIds, tokens);
+            take(pendingConfirmations, confirmedIds, confirmed);
+            if (stateIds.isEmpty() && tokenIds.isEmpty() && confirmedIds.isEmpty()) {
+                return;
+            }
+
+            try {
+                writeBatch(stateIds, states, tokenIds, tokens, confirmedIds, confirmed);
+            } catch (SQLException ex) {
+                crit("Failed to persist %d state changes, %d token rotations and %d confirmations: %s",
+                        stateIds.size(), tokenIds.size(), confirmedIds.size(), ex.getMessage());
+                // Requeue unless a newer value arrived in the meantime
+                for (int i = 0; i < stateIds.size(); i++) {
+                    pending.putIfAbsent(stateIds.get(i), states.get(i));
+                }
+                for (int i = 0; i < tokenIds.size(); i++) {
+                    pendingTokens.putIfAbsent(tokenIds.get(i), tokens.get(i));
+                }
+                for (int i = 0; i < confirmedIds.size(); i++) {
+                    pendingConfirmations.putIfAbsent(confirmedIds.get(i), confirmed.get(i));
+                }
+                return;
+            }
+        }
+    }
+
+    private <V> void take(ConcurrentHashMap<Integer, V> source, List<Integer> agentIds, List<V> values) {
+        for (Map.Entry<Integer, V> entry : source.entrySet()) {
+            if (source.remove(entry.getKey(), entry.getValue())) {
+                agentIds.add(entry.getKey());
+                values.add(entry.getValue());
+                if (agentIds.size() == batchSize) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<Integer> stateIds, List<RemoteN2Agent.State> states,
+            List<Integer> tokenIds, List<TokenRotation> tokens,
+            List<Integer> confirmedIds, List<String> confirmed) throws SQLException {
+        try (Connection connection = DBConnection.getConnection()) {
+            connection.setAutoCommit(false);
+            if (!stateIds.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE `agents` SET `state` = ? WHERE `agent_id` = ?;")) {
+                    for (int i = 0; i < stateIds.size(); i++) {
+                        statement.setInt(1, states.get(i).value);
+                        statement.setInt(2, stateIds.get(i));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            if (!tokenIds.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE `agents` SET `auth_token` = ?, `previous_auth_token` = ? WHERE `agent_id` = ?;")) {
+                    for (int i = 0; i < tokenIds.size(); i++) {
+                        statement.setString(1, tokens.get(i).tokenHash);
+                        statement.setString(2, tokens.get(i).previousHash);
+                        statement.setInt(3, tokenIds.get(i));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            // After the rotations, so a confirmation queued behind its rotation still applies
+            if (!confirmedIds.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE `agents` SET `previous_auth_token` = NULL "
+                        + "WHERE `agent_id` = ? AND `previous_auth_token` = ?;")) {
+                    for (int i = 0; i < confirmedIds.size(); i++) {
+                        statement.setInt(1, confirmedIds.get(i));
+                        statement.setString(2, confirmed.get(i));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            connection.commit();
+        }
+        rowsWritten.addAndGet(stateIds.size() + tokenIds.size() + confirmedIds.size());
+        batchesWritten.incrementAndGet();
+        debug("Persisted state of %d agents, %d token rotations and %d confirmations", stateIds.size(),
+                tokenIds.size(), confirmedIds.size());
+    }
+
+    private static final class TokenRotation {
+
+        private final String tokenHash;
+        private final String previousHash;
+
+        TokenRotation(String tokenHash, String previousHash) {
+            this.tokenHash = tokenHash;
+            this.previousHash = previousHash;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+/**
+ * A point-in-time copy of one row of the {@link FleetStatus} view. Times are
+ * in milliseconds since the epoch, 0 when the event has not happened yet.
+ *
+ * @author sulochana
+ */
+public final class AgentStatus {
+
+    private final int agentId;
+    private final int ownerId;
+    private final RemoteN2Agent.State state;
+    private final long lastLoginMs;
+    private final long lastHeartbeatMs;
+    private final long lastDisconnectMs;
+    private final long clockSkewMs;
+    private final long heartbeats;
+
+    AgentStatus(int agentId, int ownerId, RemoteN2Agent.State state, long lastLoginMs, long lastHeartbeatMs,
+            long lastDisconnectMs, long clockSkewMs, long heartbeats) {
+        this.agentId = agentId;
+        this.ownerId = ownerId;
+        this.state = state;
+        this.lastLoginMs = lastLoginMs;
+        this.lastHeartbeatMs = lastHeartbeatMs;
+        this.lastDisconnectMs = lastDisconnectMs;
+        this.clockSkewMs = clockSkewMs;
+        this.heartbeats = heartbeats;
+    }
+
+    public int getAgentId() {
+        return agentId;
+    }
+
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    public RemoteN2Agent.State getState() {
+        return state;
+    }
+
+    public long getLastLoginMs() {
+        return lastLoginMs;
+    }
+
+    public long getLastHeartbeatMs() {
+        return lastHeartbeatMs;
+    }
+
+    public long getLastDisconnectMs() {
+        return lastDisconnectMs;
+    }
+
+    /**
+     * Agent clock minus Control Centre clock as of the last heartbeat.
+     */
+    public long getClockSkewMs() {
+        return clockSkewMs;
+    }
+
+    /**
+     * Heartbeats received since the Control Centre started.
+     */
+    public long getHeartbeats() {
+        return heartbeats;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NX2A-%d [owner: %d state: %s last HB: %d skew: %dms]",
+                agentId, ownerId, state, lastHeartbeatMs, clockSkewMs);
+    }
+
+}
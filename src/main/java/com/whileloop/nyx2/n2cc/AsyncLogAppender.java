@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes {@link HotPathLogger} output from a background thread. Producers
+ * claim a slot of a lock-free ring buffer and store the format string and
+ * arguments as they are; formatting and stdout I/O happen on the
+ * {@code n2cc-log-appender} thread, so a thread that logs never formats,
+ * locks or blocks on the console. A message that finds the ring full is
+ * dropped and counted.
+ * <p>
+ * Because formatting is deferred, an argument is formatted as it is when the
+ * appender thread gets to it, not as it was when it was logged. Log
+ * immutable values, or a copy of anything the caller goes on to change.
+ * <p>
+ * Each message is written to {@code System.out} as one {@code println}, the
+ * same stream {@code NX2Logger} writes to, so lines from the two never
+ * interleave and each one is flushed as it is written.
+ *
+ * @author sulochana
+ */
+public final class AsyncLogAppender {
+
+    static final int MAX_ARGS = 3;
+    private static final long IDLE_PARK_NANOS = 5000000;
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    private static final LongAdder written = Metrics.LOG_MESSAGES.labels("written");
+    private static final LongAdder dropped = Metrics.LOG_MESSAGES.labels("dropped_buffer_full");
+
+    private final static AsyncLogAppender instance = create();
+
+    private final int mask;
+    private final long[] timestamps;
+    private final HotPathLogger.Level[] levels;
+    private final String[] sources;
+    private final String[] formats;
+    private final Object[] args;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private volatile boolean running = true;
+
+    private final StringBuilder line = new StringBuilder(256);
+    private final Formatter formatter = new Formatter(line);
+    private final Object[] formatArgs = new Object[MAX_ARGS];
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final Date time = new Date();
+    private final Thread writer;
+
+    /**
+     * @param capacity ring buffer size, rounded up to a power of two
+     */
+    AsyncLogAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.levels = new HotPathLogger.Level[size];
+        this.sources = new String[size];
+        this.formats = new String[size];
+        this.args = new Object[size * MAX_ARGS];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "n2cc-log-appender");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static AsyncLogAppender getInstance() {
+        return instance;
+    }
+
+    /**
+     * Logging has to come up even when misconfigured: a bad
+     * {@code N2CC_LOG_BUFFER} falls back to the default with a warning
+     * instead of failing the class initialisation.
+     */
+    private static AsyncLogAppender create() {
+        String problem = null;
+        int capacity = DEFAULT_CAPACITY;
+        try {
+            capacity = ControlCentreConfig.getInt("N2CC_LOG_BUFFER", DEFAULT_CAPACITY);
+            if (capacity < 1 || capacity > MAX_CAPACITY) {
+                problem = String.format("N2CC_LOG_BUFFER must be between 1 and %d, got %d", MAX_CAPACITY, capacity);
+                capacity = DEFAULT_CAPACITY;
+            }
+        } catch (IllegalArgumentException ex) {
+            problem = ex.getMessage();
+        }
+        AsyncLogAppender appender = new AsyncLogAppender(capacity);
+        if (problem != null) {
+            appender.append(HotPathLogger.Level.WARN, AsyncLogAppender.class.getSimpleName(), "%s. Using %d",
+                    problem, capacity, null);
+        }
+        return appender;
+    }
+
+    /**
+     * Buffers one message. Never blocks.
+     *
+     * @return false if the buffer was full and the message was dropped
+     */
+    boolean append(HotPathLogger.Level level, String source, String format, Object a, Object b, Object c) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        timestamps[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        sources[slot] = source;
+        formats[slot] = format;
+        args[slot * MAX_ARGS] = a;
+        args[slot * MAX_ARGS + 1] = b;
+        args[slot * MAX_ARGS + 2] = c;
+        published.lazySet(slot, sequence);
+        return true;
+    }
+
+    public int getBufferedCount() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Writes out what is buffered and stops the appender thread.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean stopping = !running;
+            if (drain() == 0) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private int drain() {
+        long sequence = head;
+        int drained = 0;
+        while (true) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            write(slot);
+            formats[slot] = null;
+            for (int i = 0; i < MAX_ARGS; i++) {
+                args[slot * MAX_ARGS + i] = null;
+            }
+            sequence++;
+            drained++;
+            // Free the slots as we go so producers see room during a long drain
+            head = sequence;
+        }
+        written.add(drained);
+        return drained;
+    }
+
+    private void write(int slot) {
+        line.setLength(0);
+        time.setTime(timestamps[slot]);
+        line.append(timeFormat.format(time)).append(' ').append(levels[slot].name())
+                .append(" [").append(sources[slot]).append("] ");
+        int start = line.length();
+        System.arraycopy(args, slot * MAX_ARGS, formatArgs, 0, MAX_ARGS);
+        try {
+            formatter.format(formats[slot], formatArgs);
+        } catch (RuntimeException ex) {
+            // A bad or missing format, or an argument whose toString() throws,
+            // must not take the appender thread down
+            line.setLength(start);
+            line.append(formats[slot]);
+        }
+        System.out.println(line.toString());
+    }
+
+}
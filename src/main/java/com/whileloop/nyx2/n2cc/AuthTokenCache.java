@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory auth token to agent identity cache used by token logins. Entries
+ * are keyed by a 128 bit prefix of the token's SHA-256 digest, so the raw
+ * token is never kept in memory. The cache is split into independently
+ * locked LRU segments, each bounded in size, and entries expire after a TTL.
+ *
+ * @author sulochana
+ */
+public final class AuthTokenCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlMs;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public AuthTokenCache(int maxSize, long ttlMs) {
+        this.ttlMs = ttlMs;
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    public AgentIdentity get(String authToken) {
+        if (authToken == null) {
+            return null;
+        }
+        TokenKey key = TokenKey.of(authToken);
+        AgentIdentity identity = segmentFor(key).get(key, System.currentTimeMillis());
+        if (identity == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return identity;
+    }
+
+    public void put(String authToken, AgentIdentity identity) {
+        TokenKey key = TokenKey.of(authToken);
+        segmentFor(key).put(key, new Entry(identity, System.currentTimeMillis() + ttlMs));
+    }
+
+    /**
+     * Adds an entry for a token known only by its
+     * {@link TokenIssuer#digest(String)}, as stored in the database.
+     */
+    void preload(byte[] tokenDigest, AgentIdentity identity) {
+        TokenKey key = TokenKey.of(tokenDigest);
+        segmentFor(key).put(key, new Entry(identity, System.currentTimeMillis() + ttlMs));
+    }
+
+    public void invalidate(String authToken) {
+        if (authToken == null) {
+            return;
+        }
+        invalidate(TokenIssuer.digest(authToken));
+    }
+
+    void invalidate(byte[] tokenDigest) {
+        TokenKey key = TokenKey.of(tokenDigest);
+        segmentFor(key).remove(key);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(TokenKey key) {
+        return segments[(int) (key.low & (SEGMENTS - 1))];
+    }
+
+    private static final class Entry {
+
+        private final AgentIdentity identity;
+        private final long expiresAt;
+
+        Entry(AgentIdentity identity, long expiresAt) {
+            this.identity = identity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class Segment {
+
+        private final LinkedHashMap<TokenKey, Entry> entries;
+
+        Segment(final int maxSize) {
+            this.entries = new LinkedHashMap<TokenKey, Entry>(Math.min(maxSize, 1024), 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TokenKey, Entry> eldest) {
+                    if (size() > maxSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized AgentIdentity get(TokenKey key, long now) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt < now) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.identity;
+        }
+
+        synchronized void put(TokenKey key, Entry entry) {
+            entries.put(key, entry);
+        }
+
+        synchronized void remove(TokenKey key) {
+            entries.remove(key);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    static final class TokenKey {
+
+        private final long high;
+        private final long low;
+
+        TokenKey(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        static TokenKey of(String authToken) {
+            return of(TokenIssuer.digest(authToken));
+        }
+
+        static TokenKey of(byte[] digest) {
+            long high = 0;
+            long low = 0;
+            for (int i = 0; i < 8; i++) {
+                high = (high << 8) | (digest[i] & 0xff);
+                low = (low << 8) | (digest[i + 8] & 0xff);
+            }
+            return new TokenKey(high, low);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof TokenKey)) {
+                return false;
+            }
+            TokenKey key = (TokenKey) other;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completion handle of a {@link Broadcaster#broadcast} call, holding the
+ * outcome for every targeted agent as it becomes known.
+ *
+ * @author sulochana
+ */
+public final class BroadcastResult {
+
+    public enum Delivery {
+
+        /** Handed to the agent's connection for writing. */
+        SENT,
+        /** The agent had gone offline before its turn came. */
+        SKIPPED,
+        /** Writing to the agent's connection threw. */
+        FAILED
+    }
+
+    public interface Listener {
+
+        void onComplete(BroadcastResult result);
+    }
+
+    private final int targets;
+    private final Map<Integer, Delivery> deliveries;
+    private final CountDownLatch done;
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    BroadcastResult(int targets) {
+        this.targets = targets;
+        this.deliveries = new ConcurrentHashMap<>(Math.max(16, targets * 4 / 3));
+        this.done = new CountDownLatch(targets);
+    }
+
+    void record(RemoteN2Agent agent, Delivery delivery) {
+        deliveries.put(agent.getAgentId(), delivery);
+        switch (delivery) {
+            case SENT:
+                sent.incrementAndGet();
+                break;
+            case SKIPPED:
+                skipped.incrementAndGet();
+                break;
+            default:
+                failed.incrementAndGet();
+                break;
+        }
+        Metrics.BROADCAST_DELIVERIES.labels(delivery.name()).increment();
+        done.countDown();
+        if (done.getCount() == 0) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Calls {@code listener} once every agent has an outcome, right away if
+     * that is already the case.
+     */
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (done.getCount() > 0) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    private void notifyListeners() {
+        List<Listener> pending;
+        synchronized (listeners) {
+            pending = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : pending) {
+            listener.onComplete(this);
+        }
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public int getTargetCount() {
+        return targets;
+    }
+
+    public int getSentCount() {
+        return sent.get();
+    }
+
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Outcome per agent_id of the agents handled so far.
+     */
+    public Map<Integer, Delivery> getDeliveries() {
+        return Collections.unmodifiableMap(deliveries);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import com.whileloop.sendit.messages.SMessage;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends one message to every logged in agent selected by an
+ * {@link AgentFilter}. The same message instance goes to every connection
+ * and targets are written in batches, one agent executor task per batch, so
+ * fanning a message out to the fleet costs a handful of tasks instead of
+ * one per agent.
+ *
+ * @author sulochana
+ */
+public final class Broadcaster extends NX2Logger {
+
+    private final AgentRegistry registry;
+    private final Executor executor;
+    private final int batchSize;
+
+    public Broadcaster(AgentRegistry registry, Executor executor, int batchSize) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.registry = registry;
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public BroadcastResult broadcast(final SMessage msg, AgentFilter filter) {
+        List<RemoteN2Agent> targets = filter.select(registry);
+        final BroadcastResult result = new BroadcastResult(targets.size());
+        info("Broadcasting %s to %d agents", msg.getClass().getSimpleName(), targets.size());
+
+        for (int from = 0; from < targets.size(); from += batchSize) {
+            final List<RemoteN2Agent> batch = targets.subList(from, Math.min(targets.size(), from + batchSize));
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (RemoteN2Agent agent : batch) {
+                        deliver(agent, msg, result);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private void deliver(RemoteN2Agent agent, SMessage msg, BroadcastResult result) {
+        if (agent.getState() != RemoteN2Agent.State.ONLINE) {
+            result.record(agent, BroadcastResult.Delivery.SKIPPED);
+            return;
+        }
+        try {
+            agent.send(msg);
+            result.record(agent, BroadcastResult.Delivery.SENT);
+        } catch (RuntimeException ex) {
+            warn("Broadcast of %s to NX2A-%d failed: %s", msg.getClass().getSimpleName(), agent.getAgentId(),
+                    ex.getMessage());
+            result.record(agent, BroadcastResult.Delivery.FAILED);
+        }
+    }
+
+}
@@ -24,14 +24,35 @@
 package com.whileloop.nyx2.n2cc;
 
 import com.whileloop.nyx2.utils.NX2Logger;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
+/**
+ * Starts the Control Centre in phases. The database pool connects and then
+ * preloads the token cache on a startup thread while the Agent Service is
+ * created and loads the session snapshot; the service is only put into
+ * ready state once all of them are done, which is also when the writers that
+ * need the database start. Each phase is logged with its duration and
+ * exported as {@code n2cc_startup_phase_seconds}. A phase that fails throws
+ * a {@link StartupFailure}, which reaches {@link #main} and sets the exit
+ * code.
+ *
+ * @author sulochana
+ */
 public class ControlCentre extends NX2Logger {
 
     enum ExitCodes {
 
         DB_DRIVER_FAIL(0x1),
-        DB_CONN_FAIL(0x2);
+        DB_CONN_FAIL(0x2),
+        STARTUP_FAIL(0x3);
 
         public int code;
 
@@ -40,26 +61,156 @@ public class ControlCentre extends NX2Logger {
         }
     }
 
-    public static void main(String[] args) {
-        ControlCentre cc = new ControlCentre();
+    /**
+     * Thrown by a startup phase that the Control Centre cannot run without.
+     */
+    static final class StartupFailure extends RuntimeException {
 
+        private final ExitCodes exitCode;
+
+        StartupFailure(ExitCodes exitCode, String message, Throwable cause) {
+            super(message, cause);
+            this.exitCode = exitCode;
+        }
     }
 
+    public static void main(String[] args) {
+        try {
+            ControlCentre cc = new ControlCentre();
+        } catch (StartupFailure ex) {
+            System.exit(ex.exitCode.code);
+        }
+    }
+
+    private final StartupPhases phases = Metrics.register(new StartupPhases());
+
     public ControlCentre() {
         info("Starting NYX2 Conrtrol Centre");
-        connectToDatabase();
-        AgentService.getInstance();
+        long started = System.nanoTime();
+        // First, so that the warm-up can be watched
+        startMetricsExporters();
+
+        ExecutorService startup = Executors.newSingleThreadExecutor(new DefaultThreadFactory("n2cc-startup"));
+        Future<?> database = startup.submit(new Runnable() {
+            @Override
+            public void run() {
+                runPhase("database", new Runnable() {
+                    @Override
+                    public void run() {
+                        connectToDatabase();
+                    }
+                });
+                runPhase("schema", new Runnable() {
+                    @Override
+                    public void run() {
+                        checkSchema();
+                    }
+                });
+                runPhase("token_cache", new Runnable() {
+                    @Override
+                    public void run() {
+                        preloadTokenCache();
+                    }
+                });
+            }
+        });
+        startup.shutdown();
+
+        runPhase("agent_service", new Runnable() {
+            @Override
+            public void run() {
+                AgentService.getInstance();
+            }
+        });
+        runPhase("session_snapshot", new Runnable() {
+            @Override
+            public void run() {
+                AgentService.getInstance().loadSessionSnapshot();
+            }
+        });
+
+        try {
+            database.get();
+        } catch (ExecutionException ex) {
+            StartupFailure failure = ex.getCause() instanceof StartupFailure
+                    ? (StartupFailure) ex.getCause()
+                    : new StartupFailure(ExitCodes.STARTUP_FAIL, String.valueOf(ex.getCause()), ex.getCause());
+            crit("Startup failed: %s", failure.getMessage());
+            throw failure;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            crit("Interrupted while waiting for the database");
+            throw new StartupFailure(ExitCodes.STARTUP_FAIL, "Interrupted while waiting for the database", ex);
+        }
+
+        long elapsed = System.nanoTime() - started;
+        phases.record("total", elapsed);
+        AgentService.getInstance().readyServer();
+        info("Control Centre started in %dms", TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void runPhase(String phase, Runnable task) {
+        long started = System.nanoTime();
+        task.run();
+        long elapsed = System.nanoTime() - started;
+        phases.record(phase, elapsed);
+        info("Startup phase %s took %dms", phase, TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void checkSchema() {
+        SchemaMigrations schema = new SchemaMigrations();
+        try {
+            if (ControlCentreConfig.getBoolean("N2CC_DB_MIGRATE", false)) {
+                schema.migrate();
+            }
+            int current = schema.getCurrentVersion();
+            if (current < schema.getLatestVersion()) {
+                throw new StartupFailure(ExitCodes.STARTUP_FAIL, String.format(
+                        "Database schema is at version %d, this build needs %d. Run %s first",
+                        current, schema.getLatestVersion(), SchemaMigrations.class.getName()), null);
+            }
+        } catch (SQLException ex) {
+            throw new StartupFailure(ExitCodes.STARTUP_FAIL, "Schema check failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void preloadTokenCache() {
+        try {
+            int loaded = AgentService.getInstance().preloadTokenCache();
+            info("Preloaded %d auth tokens into the token cache", loaded);
+        } catch (SQLException ex) {
+            // Logins still work, each first one is just a database lookup
+            warn("Failed to preload the token cache: %s", ex.getMessage());
+        }
+    }
+
+    private void startMetricsExporters() {
+        if (ControlCentreConfig.getBoolean("N2CC_METRICS_JMX", true)) {
+            try {
+                MetricsJmxExporter.register();
+            } catch (JMException ex) {
+                warn("Failed to register metrics MBeans: %s", ex.getMessage());
+            }
+        }
+
+        int port = ControlCentreConfig.getInt("N2CC_METRICS_PORT", 9400);
+        if (port > 0) {
+            try {
+                new MetricsHttpExporter(ControlCentreConfig.getString("N2CC_METRICS_BIND", "127.0.0.1"), port);
+            } catch (IOException ex) {
+                warn("Failed to start metrics endpoint on port %d: %s", port, ex.getMessage());
+            }
+        }
     }
 
     private void connectToDatabase() {
         try {
             DBConnection dbc = new DBConnection();
         } catch (ClassNotFoundException ex) {
-            crit("Failed to load JDBC driver: %s", ex.getMessage());
-            System.exit(ExitCodes.DB_DRIVER_FAIL.code);
+            throw new StartupFailure(ExitCodes.DB_DRIVER_FAIL, "Failed to load JDBC driver: " + ex.getMessage(), ex);
         } catch (SQLException ex) {
-            crit("Failed to establish database connection: %s", ex.getMessage());
-            System.exit(ExitCodes.DB_CONN_FAIL.code);
+            throw new StartupFailure(ExitCodes.DB_CONN_FAIL,
+                    "Failed to establish database connection: " + ex.getMessage(), ex);
         }
     }
 
@@ -25,7 +25,6 @@ package com.whileloop.nyx2.n2cc;
 
 import com.whileloop.nyx2.utils.NX2Logger;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 /**
@@ -36,24 +35,102 @@ public final class DBConnection extends NX2Logger {
 
     private static DBConnection instance;
 
-    private Connection connection = null;
+    private final DBConnectionPool pool;
 
     public DBConnection() throws ClassNotFoundException, SQLException {
         debug("Loading JDBC driver");
         this.setVerboseLevel(Loglevel.DEBUG);
-        Class.forName("com.mysql.jdbc.Driver");
-        String connectionStr;
-        connectionStr = String.format("jdbc:mysql://%s/nyx2?autoReconnect=true&useSSL=false&user=%s&password=%s",
-                System.getenv("AWS_RDB_HOST"),
-                System.getenv("AWS_RDB_USERNAME"), System.getenv("AWS_RDB_PASSWORD"));
+        Class.forName(ControlCentreConfig.getString("N2CC_DB_DRIVER", "com.mysql.jdbc.Driver"));
+        String connectionStr = ControlCentreConfig.getString("N2CC_DB_URL", null);
+        if (connectionStr == null) {
+            connectionStr = String.format("jdbc:mysql://%s/nyx2?autoReconnect=true&useSSL=false&rewriteBatchedStatements=true&useCursorFetch=true&user=%s&password=%s",
+                    System.getenv("AWS_RDB_HOST"),
+                    System.getenv("AWS_RDB_USERNAME"), System.getenv("AWS_RDB_PASSWORD"));
+        }
         debug("Establishing database connection: %s", connectionStr);
-        connection = DriverManager.getConnection(connectionStr);
+        pool = new DBConnectionPool(connectionStr,
+                ControlCentreConfig.getInt("N2CC_DB_POOL_MIN", 2),
+                ControlCentreConfig.getInt("N2CC_DB_POOL_MAX", 16),
+                ControlCentreConfig.getLong("N2CC_DB_POOL_TIMEOUT_MS", 5000),
+                ControlCentreConfig.getLong("N2CC_DB_VALIDATION_INTERVAL_MS", 30000),
+                ControlCentreConfig.getInt("N2CC_DB_STATEMENT_CACHE", 64));
         info("Connected to database");
         instance = this;
+        registerMetrics();
     }
 
-    public static Connection getConnection() {
-        return instance.connection;
+    private void registerMetrics() {
+        Metrics.gauge("n2cc_db_pool_active", "Leased database connections", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getActiveCount();
+            }
+        });
+        Metrics.gauge("n2cc_db_pool_idle", "Idle database connections", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getIdleCount();
+            }
+        });
+        Metrics.gauge("n2cc_db_pool_waiting", "Threads waiting for a database connection", new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getWaitingCount();
+            }
+        });
+        Metrics.gauge("n2cc_db_pool_wait_avg_seconds", "Average time spent waiting for a database connection",
+                new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getAverageWaitMillis() / 1000.0;
+            }
+        });
+        Metrics.gauge("n2cc_db_pool_wait_max_seconds", "Longest time spent waiting for a database connection",
+                new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getMaxWaitMillis() / 1000.0;
+            }
+        });
+        Metrics.counter("n2cc_db_pool_timeouts_total", "Database connection borrows that timed out",
+                new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getBorrowTimeouts();
+            }
+        });
+        Metrics.counter("n2cc_db_statement_cache_hits_total", "Prepared statements served from the cache",
+                new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getStatementCacheHits();
+            }
+        });
+        Metrics.counter("n2cc_db_statement_cache_misses_total", "Prepared statements that had to be prepared",
+                new MetricGauge.Source() {
+            @Override
+            public double value() {
+                return pool.getStatementCacheMisses();
+            }
+        });
+    }
+
+    /**
+     * Leases a connection from the pool. The caller must close it to return
+     * it, preferably with try-with-resources.
+     */
+    public static Connection getConnection() throws SQLException {
+        return instance.pool.borrow();
+    }
+
+    public static DBConnectionPool getPool() {
+        return instance.pool;
+    }
+
+    public static void close() {
+        if (instance != null) {
+            instance.pool.close();
+        }
     }
 
 }
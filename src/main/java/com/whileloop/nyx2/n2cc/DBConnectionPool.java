@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded JDBC connection pool. At most {@code maxSize} connections are
+ * leased at any time; callers beyond that wait up to the borrow timeout.
+ * Connections evicted because they broke or failed validation are replaced
+ * until {@code minSize} are open again.
+ * Every pooled connection keeps its own prepared statement cache, so closing
+ * a statement obtained from a leased connection returns it to the cache
+ * instead of releasing it on the server.
+ *
+ * @author sulochana
+ */
+public final class DBConnectionPool extends NX2Logger {
+
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final long validationIntervalMs;
+    private final int validationTimeoutSec;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public DBConnectionPool(String url, int minSize, int maxSize, long borrowTimeoutMs,
+            long validationIntervalMs, int statementCacheSize) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException(String.format("Invalid pool size min=%d max=%d", minSize, maxSize));
+        }
+        this.setVerboseLevel(Loglevel.INFO);
+        this.url = url;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.validationTimeoutSec = 5;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        for (int i = 0; i < minSize; i++) {
+            idle.offerLast(open());
+        }
+        info("Database pool ready. min: %d max: %d statement cache: %d", minSize, maxSize, statementCacheSize);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Database pool is closed");
+        }
+
+        long started = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", ex);
+        }
+        recordWait(System.nanoTime() - started);
+
+        if (!acquired) {
+            borrowTimeouts.incrementAndGet();
+            throw new SQLTransientConnectionException(String.format(
+                    "Timed out after %dms waiting for a database connection (active: %d)",
+                    borrowTimeoutMs, activeConnections.get()));
+        }
+
+        try {
+            PooledConnection pooled;
+            boolean evicted = false;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                discard(pooled);
+                evicted = true;
+            }
+            if (pooled == null) {
+                pooled = open();
+            }
+            activeConnections.incrementAndGet();
+            borrowCount.incrementAndGet();
+            if (evicted) {
+                replenish();
+            }
+            return pooled.lease();
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        activeConnections.decrementAndGet();
+        boolean evicted = false;
+        try {
+            if (closed || pooled.isBroken() || !pooled.reset()) {
+                discard(pooled);
+                evicted = true;
+            } else {
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+        if (evicted) {
+            replenish();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+        info("Database pool closed");
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        totalConnections.incrementAndGet();
+        return new PooledConnection(this, connection, statementCacheSize);
+    }
+
+    /**
+     * Opens idle connections until the pool holds minSize again, after
+     * connections were evicted. A failure is left for the next eviction or
+     * borrow to retry.
+     */
+    private void replenish() {
+        int total;
+        while (!closed && (total = totalConnections.get()) < minSize) {
+            if (!totalConnections.compareAndSet(total, total + 1)) {
+                continue;
+            }
+            try {
+                idle.offerLast(new PooledConnection(this, DriverManager.getConnection(url), statementCacheSize));
+            } catch (SQLException ex) {
+                totalConnections.decrementAndGet();
+                warn("Failed to replenish the database pool to %d connections: %s", minSize, ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.getLastUsed() < validationIntervalMs) {
+            return true;
+        }
+        try {
+            return pooled.getPhysicalConnection().isValid(validationTimeoutSec);
+        } catch (SQLException ex) {
+            warn("Pooled database connection failed validation: %s", ex.getMessage());
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        pooled.closePhysical();
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    void recordStatementCache(boolean hit) {
+        if (hit) {
+            statementCacheHits.incrementAndGet();
+        } else {
+            statementCacheMisses.incrementAndGet();
+        }
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return activeConnections.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getTotalCount() {
+        return totalConnections.get();
+    }
+
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long borrows = borrowCount.get() + borrowTimeouts.get();
+        if (borrows == 0) {
+            return 0;
+        }
+        return totalWaitNanos.get() / (double) borrows / 1000000.0;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for blocking database work. Netty event loop threads must
+ * never run JDBC calls; they hand the work to this executor instead. When the
+ * executor is full {@link #execute(Runnable)} throws
+ * {@link RejectedExecutionException} so the caller can fail fast.
+ * <p>
+ * In {@link ExecutionMode#PLATFORM} mode tasks run on a fixed pool of
+ * {@code threads} and up to {@code queueSize} wait in a queue. In
+ * {@link ExecutionMode#VIRTUAL} mode every task gets its own virtual thread
+ * and up to {@code threads + queueSize} run at once, blocked on the database
+ * or the connection pool rather than on a free thread. A virtual thread
+ * blocking inside a {@code synchronized} block pins its carrier thread, and
+ * MySQL Connector/J 5.1 synchronizes on the connection for every statement,
+ * so with that driver VIRTUAL mode runs at most one query per core.
+ *
+ * @author sulochana
+ */
+public final class DBExecutor extends NX2Logger implements Executor {
+
+    public enum ExecutionMode {
+
+        /** A fixed pool of platform threads in front of a bounded queue. */
+        PLATFORM,
+        /** One virtual thread per task. */
+        VIRTUAL
+    }
+
+    private final ExecutionMode mode;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore slots;
+    private final int capacity;
+
+    public DBExecutor(int threads, int queueSize) {
+        this(ExecutionMode.PLATFORM, threads, queueSize);
+    }
+
+    public DBExecutor(ExecutionMode mode, int threads, int queueSize) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.mode = mode;
+        this.capacity = threads + queueSize;
+        if (mode == ExecutionMode.VIRTUAL) {
+            this.pool = null;
+            this.slots = new Semaphore(this.capacity);
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("n2cc-db-v", 1).factory());
+            info("DB executor started on virtual threads. max in flight: %d", this.capacity);
+            return;
+        }
+
+        this.slots = null;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "n2cc-db-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.pool.allowCoreThreadTimeOut(true);
+        this.executor = this.pool;
+        info("DB executor started. threads: %d queue: %d", threads, queueSize);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (mode == ExecutionMode.PLATFORM) {
+            executor.execute(task);
+            return;
+        }
+
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException(String.format("%d DB tasks already in flight", capacity));
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Tasks waiting for a thread. Always 0 in VIRTUAL mode, where no task
+     * waits for one.
+     */
+    public int getQueueDepth() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return pool == null ? capacity - slots.availablePermits() : pool.getActiveCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                warn("DB executor did not drain within 10s. Abandoning %d queued tasks",
+                        executor.shutdownNow().size());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+/**
+ * Filter and page size of a {@link FleetStatus} query. Criteria that are not
+ * set match every agent.
+ *
+ * @author sulochana
+ */
+public final class FleetQuery {
+
+    int ownerId = -1;
+    RemoteN2Agent.State state;
+    long silentSinceMs = -1;
+    long minAbsClockSkewMs = -1;
+    int limit = 100;
+
+    public FleetQuery owner(int ownerId) {
+        this.ownerId = ownerId;
+        return this;
+    }
+
+    public FleetQuery state(RemoteN2Agent.State state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * Only agents not heard from since {@code timestampMs}.
+     */
+    public FleetQuery silentSince(long timestampMs) {
+        this.silentSinceMs = timestampMs;
+        return this;
+    }
+
+    /**
+     * Only agents whose clock is off by at least {@code skewMs} either way.
+     */
+    public FleetQuery clockSkewAtLeast(long skewMs) {
+        this.minAbsClockSkewMs = skewMs;
+        return this;
+    }
+
+    public FleetQuery limit(int limit) {
+        this.limit = Math.max(1, limit);
+        return this;
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory status of every agent seen since the Control Centre started,
+ * kept up to date from login, heartbeat, clock check and disconnect events
+ * so status questions never go to the database.
+ * <p>
+ * Each agent owns a row, assigned on its first login and kept after it
+ * disconnects. Rows are stored column-wise in atomic arrays, in blocks
+ * that are never moved, so an update is a volatile store from the agent's
+ * own executor and a query, on any thread, is a sequential scan of the
+ * columns it filters on. The agent_id column is written once, before the
+ * row is published through the row count. A query sees each field as of its
+ * most recent write; it does not take a consistent snapshot across agents.
+ *
+ * @author sulochana
+ */
+public final class FleetStatus {
+
+    private static final int BLOCK_BITS = 12;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    private static final RemoteN2Agent.State[] STATES = RemoteN2Agent.State.values();
+
+    private final ConcurrentHashMap<Integer, Integer> rowsByAgentId = new ConcurrentHashMap<>();
+    private volatile Block[] blocks = new Block[0];
+    private volatile int rowCount = 0;
+
+    /**
+     * Records a login and returns the agent's row, which the agent passes to
+     * the other update methods.
+     */
+    public int onLogin(int agentId, int ownerId, long timestampMs) {
+        int row = rowFor(agentId);
+        Block block = blockOf(row);
+        int index = row & BLOCK_MASK;
+        block.ownerIds.set(index, ownerId);
+        block.lastLoginMs.set(index, timestampMs);
+        block.states.set(index, RemoteN2Agent.State.ONLINE.ordinal());
+        return row;
+    }
+
+    public void onHeartbeat(int row, long timestampMs, long clockSkewMs) {
+        if (row < 0) {
+            return;
+        }
+        Block block = blockOf(row);
+        int index = row & BLOCK_MASK;
+        block.lastHeartbeatMs.set(index, timestampMs);
+        block.clockSkewMs.set(index, clockSkewMs);
+        block.heartbeats.incrementAndGet(index);
+    }
+
+    public void onStateChange(int row, RemoteN2Agent.State state, long timestampMs) {
+        if (row < 0) {
+            return;
+        }
+        Block block = blockOf(row);
+        int index = row & BLOCK_MASK;
+        block.states.set(index, state.ordinal());
+        if (state != RemoteN2Agent.State.ONLINE) {
+            block.lastDisconnectMs.set(index, timestampMs);
+        }
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    long getLastHeartbeatMs(int row) {
+        if (row < 0) {
+            return 0;
+        }
+        return blockOf(row).lastHeartbeatMs.get(row & BLOCK_MASK);
+    }
+
+    public AgentStatus get(int agentId) {
+        Integer row = rowsByAgentId.get(agentId);
+        return row == null ? null : read(row);
+    }
+
+    public int count(FleetQuery query) {
+        int matches = 0;
+        int rows = rowCount;
+        for (int row = 0; row < rows; row++) {
+            if (matches(query, row)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * First page of the agents matching {@code query}.
+     */
+    public Page query(FleetQuery query) {
+        return query(query, 0);
+    }
+
+    /**
+     * The page starting at {@code cursor}, as returned by
+     * {@link Page#getNextCursor()} of the previous page. Rows are never
+     * removed or reordered, so paging through a changing fleet neither skips
+     * nor repeats an agent.
+     */
+    public Page query(FleetQuery query, int cursor) {
+        List<AgentStatus> items = new ArrayList<>(Math.min(query.limit, 1024));
+        int rows = rowCount;
+        int row = Math.max(0, cursor);
+        for (; row < rows && items.size() < query.limit; row++) {
+            if (matches(query, row)) {
+                items.add(read(row));
+            }
+        }
+        return new Page(items, row < rows ? row : -1);
+    }
+
+    private boolean matches(FleetQuery query, int row) {
+        Block block = blockOf(row);
+        int index = row & BLOCK_MASK;
+        if (query.ownerId >= 0 && block.ownerIds.get(index) != query.ownerId) {
+            return false;
+        }
+        if (query.state != null && block.states.get(index) != query.state.ordinal()) {
+            return false;
+        }
+        if (query.silentSinceMs >= 0 && block.lastHeartbeatMs.get(index) >= query.silentSinceMs) {
+            return false;
+        }
+        return query.minAbsClockSkewMs < 0 || Math.abs(block.clockSkewMs.get(index)) >= query.minAbsClockSkewMs;
+    }
+
+    private AgentStatus read(int row) {
+        Block block = blockOf(row);
+        int index = row & BLOCK_MASK;
+        return new AgentStatus(block.agentIds[index], block.ownerIds.get(index), STATES[block.states.get(index)],
+                block.lastLoginMs.get(index), block.lastHeartbeatMs.get(index), block.lastDisconnectMs.get(index),
+                block.clockSkewMs.get(index), block.heartbeats.get(index));
+    }
+
+    private int rowFor(int agentId) {
+        Integer row = rowsByAgentId.get(agentId);
+        if (row != null) {
+            return row;
+        }
+        synchronized (this) {
+            row = rowsByAgentId.get(agentId);
+            if (row != null) {
+                return row;
+            }
+            int created = rowCount;
+            if ((created >>> BLOCK_BITS) == blocks.length) {
+                Block[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+                grown[blocks.length] = new Block();
+                blocks = grown;
+            }
+            blockOf(created).agentIds[created & BLOCK_MASK] = agentId;
+            rowsByAgentId.put(agentId, created);
+            rowCount = created + 1;
+            return created;
+        }
+    }
+
+    private Block blockOf(int row) {
+        return blocks[row >>> BLOCK_BITS];
+    }
+
+    /**
+     * One page of query results.
+     */
+    public static final class Page {
+
+        private final List<AgentStatus> items;
+        private final int nextCursor;
+
+        private Page(List<AgentStatus> items, int nextCursor) {
+            this.items = Collections.unmodifiableList(items);
+            this.nextCursor = nextCursor;
+        }
+
+        public List<AgentStatus> getItems() {
+            return items;
+        }
+
+        /**
+         * Cursor of the next page, -1 when this is the last one.
+         */
+        public int getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    private static final class Block {
+
+        // Written once under the FleetStatus lock, before rowCount is raised
+        private final int[] agentIds = new int[BLOCK_SIZE];
+        private final AtomicIntegerArray ownerIds = new AtomicIntegerArray(BLOCK_SIZE);
+        private final AtomicIntegerArray states = new AtomicIntegerArray(BLOCK_SIZE);
+        private final AtomicLongArray lastLoginMs = new AtomicLongArray(BLOCK_SIZE);
+        private final AtomicLongArray lastHeartbeatMs = new AtomicLongArray(BLOCK_SIZE);
+        private final AtomicLongArray lastDisconnectMs = new AtomicLongArray(BLOCK_SIZE);
+        private final AtomicLongArray clockSkewMs = new AtomicLongArray(BLOCK_SIZE);
+        private final AtomicLongArray heartbeats = new AtomicLongArray(BLOCK_SIZE);
+    }
+
+}
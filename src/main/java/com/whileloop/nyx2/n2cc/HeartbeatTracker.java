@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Liveness tracker for every connected agent. Each agent owns a slot in a
+ * primitive table holding its last heartbeat time and miss count. A single
+ * hashed wheel ticks {@code wheelSize} times per HB interval and on each tick
+ * sweeps only the slots hashed to the current bucket, so every agent is
+ * checked exactly once per interval without a scheduled task per agent.
+ * <p>
+ * Heartbeats are recorded without the lock. The last heartbeat times and
+ * the agents are published together in one {@link Slots} holder, so a
+ * heartbeat never pairs the grown agent table with the old time table.
+ *
+ * @author sulochana
+ */
+public final class HeartbeatTracker extends NX2Logger {
+
+    /**
+     * Source of the heartbeat times, the wall clock outside of tests.
+     */
+    interface Clock {
+
+        long millis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final long intervalMs;
+    private final int allowedMisses;
+    private final int wheelSize;
+    private final Object lock = new Object();
+    private final Clock clock;
+
+    private volatile Slots slots;
+    private int[] missCount;
+    private int[] freeSlots;
+    private int freeCount = 0;
+    private int highWater = 0;
+    private int tracked = 0;
+    private int cursor = 0;
+    private ScheduledFuture<?> ticker;
+
+    public HeartbeatTracker(long intervalMs, int allowedMisses, int wheelSize, int initialCapacity) {
+        this(intervalMs, allowedMisses, wheelSize, initialCapacity, SYSTEM_CLOCK);
+    }
+
+    HeartbeatTracker(long intervalMs, int allowedMisses, int wheelSize, int initialCapacity, Clock clock) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.clock = clock;
+        this.intervalMs = intervalMs;
+        this.allowedMisses = allowedMisses;
+        this.wheelSize = Math.max(1, wheelSize);
+        this.slots = new Slots(initialCapacity);
+        this.missCount = new int[initialCapacity];
+        this.freeSlots = new int[initialCapacity];
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        long tickMs = Math.max(1, intervalMs / wheelSize);
+        this.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        info("HB tracker started. interval: %dms wheel: %d allowed misses: %d", intervalMs, wheelSize, allowedMisses);
+    }
+
+    public void stop() {
+        if (this.ticker != null) {
+            this.ticker.cancel(false);
+        }
+    }
+
+    /**
+     * Starts tracking an agent. The agent gets one full interval before its
+     * first heartbeat is due.
+     *
+     * @return the slot to pass to {@link #heartbeat} and {@link #untrack}
+     */
+    public int track(RemoteN2Agent agent) {
+        synchronized (lock) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (highWater == slots.agents.length()) {
+                    grow();
+                }
+                slot = highWater++;
+            }
+            Slots current = slots;
+            current.lastHB.set(slot, clock.millis());
+            missCount[slot] = 0;
+            current.agents.set(slot, agent);
+            tracked++;
+            return slot;
+        }
+    }
+
+    public void untrack(int slot, RemoteN2Agent agent) {
+        synchronized (lock) {
+            if (slot < 0 || slots.agents.get(slot) != agent) {
+                return;
+            }
+            slots.agents.set(slot, null);
+            freeSlots[freeCount++] = slot;
+            tracked--;
+        }
+    }
+
+    public void heartbeat(int slot, RemoteN2Agent agent) {
+        if (slot < 0) {
+            return;
+        }
+        long now = clock.millis();
+        Slots current;
+        do {
+            current = slots;
+            if (current.agents.get(slot) != agent) {
+                return;
+            }
+            current.lastHB.set(slot, now);
+            // A grow that copied the table before this write published a copy without it
+        } while (current != slots);
+    }
+
+    public long getLastHeartbeat(int slot) {
+        return slots.lastHB.get(slot);
+    }
+
+    public int getTrackedCount() {
+        synchronized (lock) {
+            return tracked;
+        }
+    }
+
+    private void grow() {
+        Slots current = slots;
+        int capacity = current.agents.length() * 2;
+        Slots grown = new Slots(capacity);
+        for (int i = 0; i < highWater; i++) {
+            grown.lastHB.set(i, current.lastHB.get(i));
+            grown.agents.set(i, current.agents.get(i));
+        }
+        int[] grownMissCount = new int[capacity];
+        System.arraycopy(missCount, 0, grownMissCount, 0, highWater);
+        int[] grownFreeSlots = new int[capacity];
+        System.arraycopy(freeSlots, 0, grownFreeSlots, 0, freeCount);
+
+        this.missCount = grownMissCount;
+        this.freeSlots = grownFreeSlots;
+        this.slots = grown;
+        debug("HB tracker grown to %d slots", capacity);
+    }
+
+    void tick() {
+        List<RemoteN2Agent> restored = null;
+        List<RemoteN2Agent> missed = null;
+        List<RemoteN2Agent> expired = null;
+        List<Integer> missedCounts = null;
+        long now = clock.millis();
+
+        synchronized (lock) {
+            Slots current = slots;
+            int bucket = cursor;
+            cursor = (cursor + 1) % wheelSize;
+            for (int slot = bucket; slot < highWater; slot += wheelSize) {
+                RemoteN2Agent agent = current.agents.get(slot);
+                if (agent == null) {
+                    continue;
+                }
+
+                if ((now - current.lastHB.get(slot)) <= intervalMs) {
+                    if (missCount[slot] > 0) {
+                        missCount[slot] = 0;
+                        restored = add(restored, agent);
+                    }
+                    continue;
+                }
+
+                missCount[slot]++;
+                missed = add(missed, agent);
+                missedCounts = add(missedCounts, missCount[slot]);
+                if (missCount[slot] >= allowedMisses) {
+                    current.agents.set(slot, null);
+                    freeSlots[freeCount++] = slot;
+                    tracked--;
+                    expired = add(expired, agent);
+                }
+            }
+        }
+
+        if (restored != null) {
+            for (RemoteN2Agent agent : restored) {
+                agent.onHeartbeatRestored();
+            }
+        }
+        if (missed != null) {
+            for (int i = 0; i < missed.size(); i++) {
+                missed.get(i).onHeartbeatMissed(missedCounts.get(i), allowedMisses);
+            }
+        }
+        if (expired != null) {
+            for (RemoteN2Agent agent : expired) {
+                agent.handleHbMissCountReached();
+            }
+        }
+    }
+
+    private static final class Slots {
+
+        private final AtomicLongArray lastHB;
+        private final AtomicReferenceArray<RemoteN2Agent> agents;
+
+        Slots(int capacity) {
+            this.lastHB = new AtomicLongArray(capacity);
+            this.agents = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    private static <T> List<T> add(List<T> list, T item) {
+        if (list == null) {
+            list = new ArrayList<>();
+        }
+        list.add(item);
+        return list;
+    }
+
+}
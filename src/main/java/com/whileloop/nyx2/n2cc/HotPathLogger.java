@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+/**
+ * Logger for code that runs per connection, per message or per heartbeat.
+ * The level is checked before anything else and fixed-arity overloads avoid
+ * the varargs array, so a filtered call costs one comparison; an enabled
+ * call hands the format string and arguments to the
+ * {@link AsyncLogAppender} unformatted. Arguments are still evaluated by the
+ * caller: build expensive ones under {@link #isDebugEnabled()}. They are
+ * formatted later on the appender thread, so a mutable argument is logged
+ * as it is then, not as it was at the call. Startup and
+ * shutdown messages stay on {@code NX2Logger}.
+ * <p>
+ * The level is shared by all hot path loggers and read from
+ * {@code N2CC_LOG_LEVEL}, INFO by default.
+ *
+ * @author sulochana
+ */
+public final class HotPathLogger {
+
+    public enum Level {
+
+        CRIT,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    private static volatile Level threshold = configuredLevel();
+
+    private final String source;
+
+    private HotPathLogger(String source) {
+        this.source = source;
+    }
+
+    public static HotPathLogger getLogger(Class<?> type) {
+        return new HotPathLogger(type.getSimpleName());
+    }
+
+    /**
+     * A bad {@code N2CC_LOG_LEVEL} falls back to INFO with a warning instead
+     * of failing the class initialisation of every logger.
+     */
+    private static Level configuredLevel() {
+        try {
+            return ControlCentreConfig.getEnum("N2CC_LOG_LEVEL", Level.class, Level.INFO);
+        } catch (IllegalArgumentException ex) {
+            AsyncLogAppender.getInstance().append(Level.WARN, HotPathLogger.class.getSimpleName(), "%s. Using %s",
+                    ex.getMessage(), Level.INFO, null);
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static Level getLevel() {
+        return threshold;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String msg) {
+        log(Level.DEBUG, msg, null, null, null);
+    }
+
+    public void debug(String format, Object a) {
+        log(Level.DEBUG, format, a, null, null);
+    }
+
+    public void debug(String format, Object a, Object b) {
+        log(Level.DEBUG, format, a, b, null);
+    }
+
+    public void debug(String format, Object a, Object b, Object c) {
+        log(Level.DEBUG, format, a, b, c);
+    }
+
+    public void info(String msg) {
+        log(Level.INFO, msg, null, null, null);
+    }
+
+    public void info(String format, Object a) {
+        log(Level.INFO, format, a, null, null);
+    }
+
+    public void info(String format, Object a, Object b) {
+        log(Level.INFO, format, a, b, null);
+    }
+
+    public void info(String format, Object a, Object b, Object c) {
+        log(Level.INFO, format, a, b, c);
+    }
+
+    public void warn(String msg) {
+        log(Level.WARN, msg, null, null, null);
+    }
+
+    public void warn(String format, Object a) {
+        log(Level.WARN, format, a, null, null);
+    }
+
+    public void warn(String format, Object a, Object b) {
+        log(Level.WARN, format, a, b, null);
+    }
+
+    public void warn(String format, Object a, Object b, Object c) {
+        log(Level.WARN, format, a, b, c);
+    }
+
+    public void crit(String msg) {
+        log(Level.CRIT, msg, null, null, null);
+    }
+
+    public void crit(String format, Object a) {
+        log(Level.CRIT, format, a, null, null);
+    }
+
+    public void crit(String format, Object a, Object b) {
+        log(Level.CRIT, format, a, b, null);
+    }
+
+    public void crit(String format, Object a, Object b, Object c) {
+        log(Level.CRIT, format, a, b, c);
+    }
+
+    private void log(Level level, String format, Object a, Object b, Object c) {
+        if (level.ordinal() <= threshold.ordinal()) {
+            AsyncLogAppender.getInstance().append(level, source, format, a, b, c);
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.nyx2.messages.LoginResponseMessage;
+import com.whileloop.nyx2.messages.ServerStatusMessage;
+import com.whileloop.nyx2.utils.NX2Logger;
+import com.whileloop.sendit.client.SClient;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control in front of the {@link LoginPipeline}. Logins are paced
+ * by a global token bucket and each source address has a bucket of its own.
+ * A login that finds the global bucket empty waits in a bounded queue that
+ * is drained every tick at the bucket rate, so a reconnect storm reaches the
+ * database as a steady stream instead of all at once.
+ * <p>
+ * A login over its source's limit, one that finds the queue full, and one
+ * that waited longer than the queue timeout are turned away. The agent is
+ * told the server is not ready and gets INTERNAL_ERROR; the connection is
+ * then closed after a jittered backoff that doubles with each rejection of
+ * the same source, which is when the agent will reconnect.
+ * <p>
+ * The source limit is keyed on the remote address, so every agent behind
+ * one NAT gateway shares a bucket. {@code N2CC_LOGIN_SOURCE_RATE} (logins
+ * per second, default 50) and {@code N2CC_LOGIN_SOURCE_BURST} (default 500)
+ * are sized for a site reconnecting through a single address; a source rate
+ * of 0 turns the per-source limit off and leaves only the global bucket.
+ * <p>
+ * Until {@link #open()} is called while the Control Centre warms up, every
+ * login waits in the queue; the queue timeout only counts from then.
+ *
+ * @author sulochana
+ */
+public final class LoginAdmission extends NX2Logger {
+
+    private static final HotPathLogger log = HotPathLogger.getLogger(LoginAdmission.class);
+    private static final long TICK_MS = 10;
+    private static final long SOURCE_IDLE_MS = 60000;
+
+    private final LoginPipeline pipeline;
+    private final ScheduledExecutorService scheduler;
+    private final Bucket global;
+    private final double sourceRate;
+    private final int sourceBurst;
+    private final int queueCapacity;
+    private final long queueTimeoutNanos;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+
+    private final ArrayDeque<PendingLogin> queue = new ArrayDeque<>();
+    private final Map<SClient, PendingLogin> pendingByClient = new ConcurrentHashMap<>();
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> ticker;
+    private ScheduledFuture<?> sweeper;
+    private volatile boolean open = false;
+    // Guarded by queue
+    private long openedNanos = 0;
+
+    public LoginAdmission(LoginPipeline pipeline, ScheduledExecutorService scheduler, double rate, int burst,
+            double sourceRate, int sourceBurst, int queueCapacity, long queueTimeoutMs,
+            long backoffBaseMs, long backoffMaxMs) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.pipeline = pipeline;
+        this.scheduler = scheduler;
+        this.global = new Bucket(rate, Math.max(1, burst), System.nanoTime());
+        this.sourceRate = sourceRate;
+        this.sourceBurst = Math.max(1, sourceBurst);
+        this.queueCapacity = queueCapacity;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        this.backoffBaseMs = backoffBaseMs;
+        this.backoffMaxMs = backoffMaxMs;
+    }
+
+    public void start() {
+        this.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        this.sweeper = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sweepSources();
+            }
+        }, SOURCE_IDLE_MS, SOURCE_IDLE_MS, TimeUnit.MILLISECONDS);
+        info("Login admission started. rate: %.1f/s burst: %d per source: %.1f/s burst: %d queue: %d",
+                global.rate, global.capacity, sourceRate, sourceBurst, queueCapacity);
+    }
+
+    /**
+     * Starts admitting logins, those queued so far first.
+     */
+    public void open() {
+        synchronized (queue) {
+            this.openedNanos = System.nanoTime();
+            this.open = true;
+        }
+    }
+
+    public void shutdown() {
+        if (this.ticker != null) {
+            this.ticker.cancel(false);
+        }
+        if (this.sweeper != null) {
+            this.sweeper.cancel(false);
+        }
+    }
+
+    public void submit(SClient client, LoginMessage msg) {
+        long now = System.nanoTime();
+        Source source = sourceFor(client.getRemoteHostAddress(), now);
+        if (sourceRate > 0 && !source.bucket.tryAcquire(now)) {
+            reject(client, msg, source, "rejected_source_limit");
+            return;
+        }
+
+        PendingLogin login = new PendingLogin(client, msg, source, now);
+        boolean admitted = false;
+        synchronized (queue) {
+            if (open && queue.isEmpty() && global.tryAcquire(now)) {
+                admitted = true;
+            } else if (queue.size() < queueCapacity) {
+                queue.addLast(login);
+                pendingByClient.put(client, login);
+            } else {
+                login = null;
+            }
+        }
+
+        if (admitted) {
+            admit(login);
+        } else if (login != null) {
+            Metrics.LOGIN_ADMISSIONS.labels("queued").increment();
+        } else {
+            reject(client, msg, source, "rejected_queue_full");
+        }
+    }
+
+    /**
+     * Drops a queued login whose connection has gone away.
+     */
+    public void cancel(SClient client) {
+        PendingLogin login = pendingByClient.remove(client);
+        if (login != null) {
+            login.cancelled = true;
+            Metrics.LOGIN_ADMISSIONS.labels("cancelled").increment();
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    private void drain() {
+        long now = System.nanoTime();
+        List<PendingLogin> admitted = null;
+        List<PendingLogin> expired = null;
+        synchronized (queue) {
+            PendingLogin login;
+            while ((login = queue.peekFirst()) != null) {
+                if (login.cancelled) {
+                    queue.pollFirst();
+                } else if (open && now - Math.max(login.receivedNanos, openedNanos) > queueTimeoutNanos) {
+                    queue.pollFirst();
+                    expired = add(expired, login);
+                } else if (open && global.tryAcquire(now)) {
+                    queue.pollFirst();
+                    admitted = add(admitted, login);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        if (expired != null) {
+            for (PendingLogin login : expired) {
+                if (pendingByClient.remove(login.client, login)) {
+                    reject(login.client, login.msg, login.source, "rejected_expired");
+                }
+            }
+        }
+        if (admitted != null) {
+            for (PendingLogin login : admitted) {
+                if (pendingByClient.remove(login.client, login)) {
+                    admit(login);
+                }
+            }
+        }
+    }
+
+    private static List<PendingLogin> add(List<PendingLogin> list, PendingLogin login) {
+        if (list == null) {
+            list = new ArrayList<>();
+        }
+        list.add(login);
+        return list;
+    }
+
+    private void admit(PendingLogin login) {
+        login.source.rejections = 0;
+        Metrics.LOGIN_ADMISSIONS.labels("admitted").increment();
+        pipeline.submit(login.client, login.msg, login.receivedNanos);
+    }
+
+    private void reject(final SClient client, LoginMessage msg, Source source, String decision) {
+        int rejections = Math.min(16, source.rejections++);
+        long ceiling = Math.min(backoffMaxMs, backoffBaseMs << rejections);
+        long backoffMs = backoffBaseMs + ThreadLocalRandom.current().nextLong(Math.max(1, ceiling - backoffBaseMs + 1));
+        if (log.isDebugEnabled()) {
+            log.debug("Login from %s %s. Closing in %dms", client.getRemoteHostAddress() + ":" + client.getRemotePort(),
+                    decision, backoffMs);
+        }
+
+        Metrics.LOGIN_ADMISSIONS.labels(decision).increment();
+        Metrics.LOGINS.labels(msg.getMechanism().name(), "REJECTED").increment();
+        Outbound.send(client, new ServerStatusMessage(false));
+        Outbound.send(client, new LoginResponseMessage(LoginResponseMessage.ResponseType.INTERNAL_ERROR));
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                client.closeConnection();
+            }
+        }, backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    private Source sourceFor(String address, long now) {
+        Source source = sources.get(address);
+        if (source == null) {
+            Source created = new Source(new Bucket(sourceRate, sourceBurst, now));
+            source = sources.putIfAbsent(address, created);
+            if (source == null) {
+                source = created;
+            }
+        }
+        source.lastSeenNanos = now;
+        return source;
+    }
+
+    private void sweepSources() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SOURCE_IDLE_MS);
+        Iterator<Source> iterator = sources.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeenNanos < idleSince) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static final class Bucket {
+
+        private final double rate;
+        private final int capacity;
+        private double tokens;
+        private long refilledNanos;
+
+        Bucket(double rate, int capacity, long now) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledNanos = now;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            if (now > refilledNanos) {
+                tokens = Math.min(capacity, tokens + (now - refilledNanos) * rate / 1e9);
+                refilledNanos = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private static final class Source {
+
+        private final Bucket bucket;
+        private volatile long lastSeenNanos;
+        private volatile int rejections = 0;
+
+        Source(Bucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static final class PendingLogin {
+
+        private final SClient client;
+        private final LoginMessage msg;
+        private final Source source;
+        private final long receivedNanos;
+        private volatile boolean cancelled = false;
+
+        PendingLogin(SClient client, LoginMessage msg, Source source, long receivedNanos) {
+            this.client = client;
+            this.msg = msg;
+            this.source = source;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+}
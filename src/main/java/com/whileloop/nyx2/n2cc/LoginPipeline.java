@@ -0,0 +1,428 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.nyx2.messages.LoginResponseMessage;
+import com.whileloop.nyx2.utils.NX2Logger;
+import com.whileloop.sendit.client.SClient;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs agent logins off the Netty event loop. A login goes through an
+ * authentication stage (token logins only) and a registration stage, both
+ * executed on the DB executor; new agents are registered through the
+ * {@link RegistrationBatcher} group commit. Each stage has its own deadline; when a stage
+ * misses it the agent is answered with INTERNAL_ERROR and any late result
+ * from the database is discarded. The registration stage claims the login
+ * before it rotates the token, so a rotated token is always answered with
+ * SUCCESS; the token the agent logged in with stays valid until it has
+ * received the new one (see {@link RemoteN2Agent}).
+ * <p>
+ * A token found in the {@link AuthTokenCache} or in the
+ * {@link SessionSnapshot} of the previous run skips authentication. With a
+ * {@code rotationWriter} an existing agent's token rotation is left to the
+ * write-behind {@link AgentStateWriter} and such a login does not touch the
+ * database at all, at the cost of the crash window described there. Without
+ * one the rotated token is committed before the agent is answered. A resumed
+ * session always rotates its token in the registration stage, with an UPDATE
+ * that only matches while the presented token is still the agent's
+ * {@code auth_token} or {@code previous_auth_token}; otherwise the login gets
+ * AUTH_TOKEN_EXPIRED.
+ *
+ * @author sulochana
+ */
+public final class LoginPipeline extends NX2Logger {
+
+    private final Executor dbExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final AuthTokenCache tokenCache;
+    private final SessionSnapshot sessions;
+    private final AgentStateWriter rotationWriter;
+    private final RegistrationBatcher registrationBatcher;
+    private final long authTimeoutMs;
+    private final long registrationTimeoutMs;
+    private final boolean legacyTokenLookup;
+    private final ConcurrentHashMap<SClient, LoginTask> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param legacyTokenLookup also match tokens stored before auth_token held
+     * hashes, for a database schema migration 2 has not been applied to; such
+     * a row is rewritten with a hash on the agent's next login
+     * @param sessions sessions of the previous run, or null
+     * @param rotationWriter writer for deferred token rotations, or null to
+     * rotate tokens in the registration stage
+     */
+    public LoginPipeline(Executor dbExecutor, ScheduledExecutorService scheduler, AuthTokenCache tokenCache,
+            SessionSnapshot sessions, AgentStateWriter rotationWriter,
+            RegistrationBatcher registrationBatcher, long authTimeoutMs, long registrationTimeoutMs,
+            boolean legacyTokenLookup) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.dbExecutor = dbExecutor;
+        this.scheduler = scheduler;
+        this.tokenCache = tokenCache;
+        this.sessions = sessions;
+        this.rotationWriter = rotationWriter;
+        this.registrationBatcher = registrationBatcher;
+        this.authTimeoutMs = authTimeoutMs;
+        this.registrationTimeoutMs = registrationTimeoutMs;
+        this.legacyTokenLookup = legacyTokenLookup;
+    }
+
+    public void submit(SClient client, LoginMessage msg) {
+        submit(client, msg, System.nanoTime());
+    }
+
+    /**
+     * @param receivedNanos when the LoginMessage arrived, so time spent in
+     * admission control counts towards the login duration
+     */
+    public void submit(SClient client, LoginMessage msg, long receivedNanos) {
+        LoginTask task = new LoginTask(client, msg, receivedNanos);
+        inFlight.put(client, task);
+        if (msg.getMechanism() == LoginMessage.LoginMechanism.CREDENTIALS) {
+            task.register(new AgentIdentity(-1, RemoteN2Agent.DEFAULT_OWNER_ID), null);
+            return;
+        }
+
+        // Hashing a missing token would throw on a DB thread and leave the login to the watchdog
+        if (!TokenIssuer.isWellFormed(msg.getAuthToken())) {
+            task.fail(LoginResponseMessage.ResponseType.AUTH_TOKEN_EXPIRED);
+            return;
+        }
+
+        AgentIdentity cached = tokenCache.get(msg.getAuthToken());
+        if (cached != null) {
+            task.register(cached, null);
+            return;
+        }
+
+        SessionSnapshot.Session session = sessions == null ? null : sessions.resume(msg.getAuthToken());
+        if (session != null) {
+            task.register(new AgentIdentity(session.getAgentId(), session.getOwnerId()), session.getAgentUUID());
+        } else {
+            task.authenticate();
+        }
+    }
+
+    /**
+     * Abandons the login in progress on a connection that has been closed.
+     */
+    public void cancel(SClient client) {
+        LoginTask task = inFlight.remove(client);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private AgentIdentity findAgentByToken(String authToken) throws SQLException {
+        // A presented hash must never match a stored hash as if it were the token
+        boolean legacy = legacyTokenLookup && !TokenIssuer.isHash(authToken);
+        String sql = legacy
+                ? "SELECT `agent_id`, `owner_id` FROM `agents` WHERE `auth_token` IN (?, ?) OR `previous_auth_token` = ?;"
+                : "SELECT `agent_id`, `owner_id` FROM `agents` WHERE `auth_token` = ? OR `previous_auth_token` = ?;";
+        String tokenHash = TokenIssuer.hash(authToken);
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setQueryTimeout(toQueryTimeout(authTimeoutMs));
+            statement.setMaxRows(1);
+            statement.setString(1, tokenHash);
+            if (legacy) {
+                statement.setString(2, authToken);
+                statement.setString(3, tokenHash);
+            } else {
+                statement.setString(2, tokenHash);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new AgentIdentity(resultSet.getInt("agent_id"), resultSet.getInt("owner_id"));
+            }
+        }
+    }
+
+    /**
+     * Fills the token cache from the agents table so the first logins after
+     * a start do not each query the database. The rows are read newest agent
+     * first through a forward-only cursor {@code fetchSize} rows at a time,
+     * so the result set is never held in memory as a whole.
+     *
+     * @return the number of tokens loaded
+     */
+    int preloadTokenCache(int maxRows, int fetchSize) throws SQLException {
+        String sql = "SELECT `agent_id`, `owner_id`, `auth_token` FROM `agents` "
+                + "WHERE `auth_token` IS NOT NULL ORDER BY `agent_id` DESC;";
+        int loaded = 0;
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setMaxRows(maxRows);
+            statement.setFetchSize(fetchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String token = resultSet.getString(3).trim();
+                    byte[] digest = TokenIssuer.isHash(token) ? TokenIssuer.fromHex(token) : null;
+                    if (digest == null) {
+                        if (!legacyTokenLookup) {
+                            continue;
+                        }
+                        // Stored before auth_token held hashes
+                        digest = TokenIssuer.digest(token);
+                    }
+                    tokenCache.preload(digest, new AgentIdentity(resultSet.getInt(1), resultSet.getInt(2)));
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    static int toQueryTimeout(long timeoutMs) {
+        return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMs));
+    }
+
+    private final class LoginTask {
+
+        private final SClient client;
+        private final LoginMessage msg;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private final long startedNanos;
+        private volatile boolean cancelled = false;
+        private volatile RemoteN2Agent agent;
+
+        LoginTask(SClient client, LoginMessage msg, long startedNanos) {
+            this.client = client;
+            this.msg = msg;
+            this.startedNanos = startedNanos;
+        }
+
+        void authenticate() {
+            runStage("authentication", authTimeoutMs, new Runnable() {
+                @Override
+                public void run() {
+                    AgentIdentity identity;
+                    try {
+                        identity = findAgentByToken(msg.getAuthToken());
+                    } catch (SQLException ex) {
+                        crit("Failed to authenticate NX2Agent using AUTH_TOKEN: %s", ex.getMessage());
+                        fail(LoginResponseMessage.ResponseType.INTERNAL_ERROR);
+                        return;
+                    }
+
+                    if (identity == null) {
+                        fail(LoginResponseMessage.ResponseType.AUTH_TOKEN_EXPIRED);
+                        return;
+                    }
+                    register(identity, null);
+                }
+            });
+        }
+
+        /**
+         * @param agentUUID UUID of a resumed session, null for a new one
+         */
+        void register(final AgentIdentity identity, UUID agentUUID) {
+            if (identity.getAgentId() == -1) {
+                enroll(identity.getOwnerId());
+                return;
+            }
+
+            // A resumed session was never checked against the database: its
+            // token rotation is conditional on the token still being valid
+            final boolean resumed = agentUUID != null;
+            final UUID uuid = resumed ? agentUUID : UUID.randomUUID();
+            final byte[] presentedDigest = TokenIssuer.digest(msg.getAuthToken());
+            if (rotationWriter != null && !resumed) {
+                if (!completed.compareAndSet(false, true)) {
+                    return;
+                }
+                RemoteN2Agent agent = new RemoteN2Agent(client, identity.getAgentId(), identity.getOwnerId(), uuid,
+                        presentedDigest);
+                rotationWriter.recordTokenRotation(agent.getAgentId(), agent.getAuthTokenHash(),
+                        agent.getPreviousTokenHash());
+                finish(agent);
+                return;
+            }
+
+            runStage("registration", registrationTimeoutMs, new Runnable() {
+                @Override
+                public void run() {
+                    // Claimed before the token is rotated: the watchdog must not answer a login whose
+                    // new token has already been committed. The UPDATE is bounded by its query timeout.
+                    if (!completed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    RemoteN2Agent agent = new RemoteN2Agent(client, identity.getAgentId(), identity.getOwnerId(),
+                            uuid, presentedDigest);
+                    try {
+                        if (!agent.register(toQueryTimeout(registrationTimeoutMs), resumed)) {
+                            respond(LoginResponseMessage.ResponseType.AUTH_TOKEN_EXPIRED);
+                            return;
+                        }
+                    } catch (Exception ex) {
+                        crit("Failed to register/recognize NX2Agent: %s", ex.getMessage());
+                        respond(LoginResponseMessage.ResponseType.INTERNAL_ERROR);
+                        return;
+                    }
+                    finish(agent);
+                }
+            });
+        }
+
+        void cancel() {
+            cancelled = true;
+            RemoteN2Agent created = agent;
+            if (created != null) {
+                created.OnDisconnect();
+            } else if (completed.compareAndSet(false, true)) {
+                recordOutcome("CANCELLED");
+            }
+        }
+
+        private void enroll(int ownerId) {
+            final RemoteN2Agent agent = new RemoteN2Agent(client, -1, ownerId);
+            final ScheduledFuture<?> watchdog = scheduleWatchdog("registration", registrationTimeoutMs);
+            registrationBatcher.submit(ownerId, agent.getAuthToken(), new RegistrationBatcher.Callback() {
+                @Override
+                public void onRegistered(int agentId) {
+                    watchdog.cancel(false);
+                    if (!completed.compareAndSet(false, true)) {
+                        warn("NX2A-%d registered after its login was abandoned", agentId);
+                        return;
+                    }
+                    agent.onRegistered(agentId);
+                    finish(agent);
+                }
+
+                @Override
+                public void onFailure(Exception cause) {
+                    watchdog.cancel(false);
+                    crit("Failed to register/recognize NX2Agent: %s", cause.getMessage());
+                    fail(LoginResponseMessage.ResponseType.INTERNAL_ERROR);
+                }
+            });
+        }
+
+        /**
+         * Completes a login this task has claimed. The presented token is
+         * left in the cache until the agent confirms the new one.
+         */
+        private void finish(final RemoteN2Agent agent) {
+            tokenCache.put(agent.getAuthToken(), new AgentIdentity(agent.getAgentId(), agent.getOwnerId()));
+            this.agent = agent;
+            agent.completeLogin();
+            recordOutcome(LoginResponseMessage.ResponseType.SUCCESS.name());
+            // From the agent's executor, so that it is in the registry before cancel() stops seeing it
+            agent.execute(new Runnable() {
+                @Override
+                public void run() {
+                    inFlight.remove(client, LoginTask.this);
+                }
+            });
+            if (cancelled) {
+                agent.OnDisconnect();
+            }
+        }
+
+        private void runStage(final String stage, final long timeoutMs, final Runnable work) {
+            if (completed.get()) {
+                return;
+            }
+
+            final ScheduledFuture<?> watchdog = scheduleWatchdog(stage, timeoutMs);
+            try {
+                dbExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!completed.get()) {
+                                work.run();
+                            }
+                        } finally {
+                            watchdog.cancel(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                watchdog.cancel(false);
+                warn("DB executor saturated. Rejecting login %s stage for %s:%d", stage,
+                        client.getRemoteHostAddress(), client.getRemotePort());
+                fail(LoginResponseMessage.ResponseType.INTERNAL_ERROR);
+            }
+        }
+
+        private ScheduledFuture<?> scheduleWatchdog(final String stage, final long timeoutMs) {
+            return scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (completed.compareAndSet(false, true)) {
+                        warn("Login %s stage for %s:%d exceeded %dms", stage,
+                                client.getRemoteHostAddress(), client.getRemotePort(), timeoutMs);
+                        inFlight.remove(client, LoginTask.this);
+                        Outbound.send(client, new LoginResponseMessage(LoginResponseMessage.ResponseType.INTERNAL_ERROR));
+                        recordOutcome("TIMEOUT");
+                    }
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void fail(LoginResponseMessage.ResponseType response) {
+            if (completed.compareAndSet(false, true)) {
+                respond(response);
+            }
+        }
+
+        /**
+         * Answers a login this task has claimed with a failure.
+         */
+        private void respond(LoginResponseMessage.ResponseType response) {
+            inFlight.remove(client, this);
+            Outbound.send(client, new LoginResponseMessage(response));
+            recordOutcome(response.name());
+        }
+
+        private void recordOutcome(String outcome) {
+            String mechanism = msg.getMechanism().name();
+            Metrics.LOGINS.labels(mechanism, outcome).increment();
+            Metrics.LOGIN_DURATION.labels(mechanism).observeSince(startedNanos);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import com.whileloop.sendit.messages.SMessage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes agent messages to the {@link MessageHandler} registered for their
+ * class. A message whose exact class has no handler goes to the handler of
+ * its nearest registered superclass; the result of that lookup is cached per
+ * class so routing stays a single map lookup.
+ *
+ * @author sulochana
+ */
+public final class MessageDispatcher extends NX2Logger {
+
+    private static final HotPathLogger log = HotPathLogger.getLogger(MessageDispatcher.class);
+    private static final MessageHandler<SMessage> UNHANDLED = new MessageHandler<SMessage>() {
+        @Override
+        public void handle(RemoteN2Agent agent, SMessage msg) {
+        }
+    };
+
+    private final ConcurrentHashMap<Class<?>, MessageHandler<SMessage>> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, MessageHandler<SMessage>> resolved = new ConcurrentHashMap<>();
+
+    public MessageDispatcher() {
+        this.setVerboseLevel(Loglevel.INFO);
+    }
+
+    /**
+     * Registers the handler for {@code type}, replacing any earlier one.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends SMessage> void register(Class<T> type, MessageHandler<? super T> handler) {
+        handlers.put(type, (MessageHandler<SMessage>) handler);
+        resolved.clear();
+        debug("Registered %s for %s", handler.getClass().getName(), type.getName());
+    }
+
+    public void dispatch(RemoteN2Agent agent, SMessage msg) {
+        MessageHandler<SMessage> handler = resolve(msg.getClass());
+        if (handler == UNHANDLED) {
+            log.debug("Unknown message ignored: %s", msg.getClass().getName());
+            return;
+        }
+        try {
+            handler.handle(agent, msg);
+        } catch (RuntimeException ex) {
+            log.crit("%s handler failed for NX2A-%d: %s", msg.getClass().getName(), agent.getAgentId(), ex);
+        }
+    }
+
+    private MessageHandler<SMessage> resolve(Class<?> type) {
+        MessageHandler<SMessage> handler = resolved.get(type);
+        if (handler != null) {
+            return handler;
+        }
+        handler = UNHANDLED;
+        for (Class<?> candidate = type; candidate != null; candidate = candidate.getSuperclass()) {
+            MessageHandler<SMessage> registered = handlers.get(candidate);
+            if (registered != null) {
+                handler = registered;
+                break;
+            }
+        }
+        resolved.put(type, handler);
+        return handler;
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of every metric family in {@link Metrics}. A family has a name, a
+ * help text and optional label names; its current values are reported as
+ * {@link MetricSample}s.
+ *
+ * @author sulochana
+ */
+abstract class Metric {
+
+    private final String name;
+    private final String help;
+    private final String[] labelNames;
+
+    Metric(String name, String help, String... labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getHelp() {
+        return help;
+    }
+
+    String[] getLabelNames() {
+        return labelNames;
+    }
+
+    abstract String getType();
+
+    abstract void collect(List<MetricSample> samples);
+
+    String labelKey(String... labelValues) {
+        if (labelValues.length != labelNames.length) {
+            throw new IllegalArgumentException(String.format("%s expects %d labels, got %d",
+                    name, labelNames.length, labelValues.length));
+        }
+        return formatLabels(labelNames, labelValues, null, null);
+    }
+
+    static String formatLabels(String[] names, String[] values, String extraName, String extraValue) {
+        if (names.length == 0 && extraName == null) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            appendLabel(labels, names[i], values[i]);
+        }
+        if (extraName != null) {
+            if (names.length > 0) {
+                labels.append(',');
+            }
+            appendLabel(labels, extraName, extraValue);
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * Inverse of {@link #formatLabels}.
+     */
+    static Map<String, String> parseLabels(String labels) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        int i = 1;
+        while (i < labels.length() - 1) {
+            int equals = labels.indexOf('=', i);
+            String name = labels.substring(i, equals);
+            StringBuilder value = new StringBuilder();
+            int j = equals + 2;
+            while (labels.charAt(j) != '"') {
+                char c = labels.charAt(j);
+                if (c == '\\') {
+                    c = labels.charAt(++j);
+                    value.append(c == 'n' ? '\n' : c);
+                } else {
+                    value.append(c);
+                }
+                j++;
+            }
+            parsed.put(name, value.toString());
+            // Past the closing quote and the following comma or brace
+            i = j + 2;
+        }
+        return parsed;
+    }
+
+    private static void appendLabel(StringBuilder labels, String name, String value) {
+        labels.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                labels.append('\\').append(c);
+            } else if (c == '\n') {
+                labels.append("\\n");
+            } else {
+                labels.append(c);
+            }
+        }
+        labels.append('"');
+    }
+
+}
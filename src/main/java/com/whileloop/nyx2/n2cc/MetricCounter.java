@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter family. Every label combination is backed by a striped
+ * {@link LongAdder}, so concurrent increments from the event loops do not
+ * contend on a single cache line. Hot paths should keep the adder returned
+ * by {@link #labels(String...)} instead of looking it up per event.
+ *
+ * @author sulochana
+ */
+final class MetricCounter extends Metric {
+
+    private final ConcurrentHashMap<String, LongAdder> children = new ConcurrentHashMap<>();
+
+    MetricCounter(String name, String help, String... labelNames) {
+        super(name, help, labelNames);
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    LongAdder labels(String... labelValues) {
+        String key = labelKey(labelValues);
+        LongAdder adder = children.get(key);
+        if (adder == null) {
+            LongAdder created = new LongAdder();
+            adder = children.putIfAbsent(key, created);
+            if (adder == null) {
+                adder = created;
+            }
+        }
+        return adder;
+    }
+
+    void increment() {
+        labels().increment();
+    }
+
+    @Override
+    void collect(List<MetricSample> samples) {
+        for (Map.Entry<String, LongAdder> child : children.entrySet()) {
+            samples.add(new MetricSample(getName(), child.getKey(), child.getValue().sum()));
+        }
+    }
+
+}
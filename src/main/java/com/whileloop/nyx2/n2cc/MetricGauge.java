@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.List;
+
+/**
+ * Metric whose value is read from its owner when collected. Used to expose
+ * state that is already tracked elsewhere (registry size, pool usage, queue
+ * depths) without duplicating it.
+ *
+ * @author sulochana
+ */
+final class MetricGauge extends Metric {
+
+    interface Source {
+
+        double value();
+    }
+
+    private final Source source;
+    private final String type;
+
+    MetricGauge(String name, String help, Source source) {
+        this(name, help, "gauge", source);
+    }
+
+    MetricGauge(String name, String help, String type, Source source) {
+        super(name, help);
+        this.type = type;
+        this.source = source;
+    }
+
+    @Override
+    String getType() {
+        return type;
+    }
+
+    @Override
+    void collect(List<MetricSample> samples) {
+        samples.add(new MetricSample(getName(), "", source.value()));
+    }
+
+}
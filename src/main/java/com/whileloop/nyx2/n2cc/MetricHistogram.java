@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram family with fixed bucket bounds in seconds. Observations
+ * are recorded in nanoseconds into striped per-bucket adders; buckets are
+ * exported cumulatively, as Prometheus expects.
+ *
+ * @author sulochana
+ */
+final class MetricHistogram extends Metric {
+
+    static final double[] LATENCY_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private final double[] bounds;
+    private final long[] boundsNanos;
+    private final ConcurrentHashMap<String, Child> children = new ConcurrentHashMap<>();
+
+    MetricHistogram(String name, String help, double[] bounds, String... labelNames) {
+        super(name, help, labelNames);
+        this.bounds = bounds;
+        this.boundsNanos = new long[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            this.boundsNanos[i] = (long) (bounds[i] * 1000000000L);
+        }
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    Child labels(String... labelValues) {
+        String key = labelKey(labelValues);
+        Child child = children.get(key);
+        if (child == null) {
+            Child created = new Child(key, labelValues);
+            child = children.putIfAbsent(key, created);
+            if (child == null) {
+                child = created;
+            }
+        }
+        return child;
+    }
+
+    void observeNanos(long nanos) {
+        labels().observeNanos(nanos);
+    }
+
+    @Override
+    void collect(List<MetricSample> samples) {
+        for (Map.Entry<String, Child> child : children.entrySet()) {
+            child.getValue().collect(samples);
+        }
+    }
+
+    final class Child {
+
+        private final String labels;
+        private final String[] labelValues;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Child(String labels, String[] labelValues) {
+            this.labels = labels;
+            this.labelValues = labelValues;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            for (int i = 0; i < boundsNanos.length; i++) {
+                if (nanos <= boundsNanos[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        private void collect(List<MetricSample> samples) {
+            String[] labelNames = getLabelNames();
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                samples.add(new MetricSample(getName() + "_bucket",
+                        formatLabels(labelNames, labelValues, "le", Double.toString(bounds[i])), cumulative));
+            }
+            long total = count.sum();
+            samples.add(new MetricSample(getName() + "_bucket",
+                    formatLabels(labelNames, labelValues, "le", "+Inf"), total));
+            samples.add(new MetricSample(getName() + "_sum", labels, sumNanos.sum() / 1e9));
+            samples.add(new MetricSample(getName() + "_count", labels, total));
+        }
+    }
+
+}
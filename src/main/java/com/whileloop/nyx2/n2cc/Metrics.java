@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Control Centre metrics. Holds every metric family and renders them in the
+ * Prometheus text exposition format; {@link MetricsHttpExporter} and
+ * {@link MetricsJmxExporter} publish them.
+ *
+ * @author sulochana
+ */
+public final class Metrics {
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    static final MetricCounter LOGINS = register(new MetricCounter("n2cc_logins_total",
+            "Agent logins by mechanism and outcome", "mechanism", "outcome"));
+    static final MetricHistogram LOGIN_DURATION = register(new MetricHistogram("n2cc_login_duration_seconds",
+            "Time from LoginMessage receipt to LoginResponseMessage", MetricHistogram.LATENCY_BUCKETS, "mechanism"));
+    static final MetricCounter LOGIN_ADMISSIONS = register(new MetricCounter("n2cc_login_admissions_total",
+            "Login admission control decisions", "decision"));
+    static final MetricCounter BROADCAST_DELIVERIES = register(new MetricCounter("n2cc_broadcast_deliveries_total",
+            "Per-agent outcomes of fleet broadcasts", "result"));
+    static final MetricCounter TELEMETRY_SAMPLES = register(new MetricCounter("n2cc_telemetry_samples_total",
+            "Agent telemetry samples offered for ingestion by outcome", "outcome"));
+    static final MetricCounter OUTBOUND_MESSAGES = register(new MetricCounter("n2cc_outbound_messages_total",
+            "Messages written to agent connections by type", "type"));
+    static final MetricCounter LOG_MESSAGES = register(new MetricCounter("n2cc_log_messages_total",
+            "Hot path log messages by outcome", "outcome"));
+    static final MetricHistogram DB_QUERY_DURATION = register(new MetricHistogram("n2cc_db_query_duration_seconds",
+            "Database statement execution time", MetricHistogram.LATENCY_BUCKETS, "statement"));
+    static final MetricHistogram HB_JITTER = register(new MetricHistogram("n2cc_heartbeat_jitter_seconds",
+            "Change of an agent's heartbeat inter-arrival time between consecutive heartbeats",
+            MetricHistogram.LATENCY_BUCKETS));
+    static final MetricCounter HB_MISSES = register(new MetricCounter("n2cc_heartbeat_misses_total",
+            "Heartbeat intervals that passed without a heartbeat"));
+    static final MetricCounter HB_DISCONNECTS = register(new MetricCounter("n2cc_heartbeat_disconnects_total",
+            "Agents disconnected after reaching the allowed heartbeat miss count"));
+    static final MetricCounter CLOCK_SKEW_TERMINATIONS = register(new MetricCounter("n2cc_clock_skew_terminations_total",
+            "Termination requests sent because of an unacceptable agent clock difference"));
+
+    private Metrics() {
+    }
+
+    static <T extends Metric> T register(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    static void gauge(String name, String help, MetricGauge.Source source) {
+        register(new MetricGauge(name, help, source));
+    }
+
+    /**
+     * Registers a monotonic value that is already counted elsewhere.
+     */
+    static void counter(String name, String help, MetricGauge.Source source) {
+        register(new MetricGauge(name, help, "counter", source));
+    }
+
+    static List<Metric> families() {
+        return metrics;
+    }
+
+    static List<MetricSample> collect() {
+        List<MetricSample> samples = new ArrayList<>();
+        for (Metric metric : metrics) {
+            metric.collect(samples);
+        }
+        return samples;
+    }
+
+    public static String toPrometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        List<MetricSample> samples = new ArrayList<>();
+        for (Metric metric : metrics) {
+            samples.clear();
+            metric.collect(samples);
+            out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+            out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+            for (MetricSample sample : samples) {
+                out.append(sample.getSeries()).append(' ');
+                double value = sample.getValue();
+                if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                    out.append((long) value);
+                } else {
+                    out.append(value);
+                }
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Total number of tasks waiting in the queues of an event loop group.
+     */
+    static int pendingTasks(EventExecutorGroup group) {
+        int pending = 0;
+        for (EventExecutor executor : group) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+        }
+        return pending;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes every {@link Metrics} series as its own read-only MBean in the
+ * {@code com.whileloop.nyx2.n2cc.metrics} domain. The family name is the
+ * {@code name} key of the ObjectName and each label is a key of its own, e.g.
+ * {@code com.whileloop.nyx2.n2cc.metrics:name=n2cc_logins_total,outcome=SUCCESS}.
+ * Counters and gauges expose a {@code Value} attribute, histograms expose
+ * {@code Count}, {@code Sum} and one {@code Bucket_<le>} attribute per bucket.
+ * Series appear lazily, so new ones are picked up on a periodic refresh.
+ *
+ * @author sulochana
+ */
+public final class MetricsJmxExporter extends NX2Logger {
+
+    public static final String DOMAIN = "com.whileloop.nyx2.n2cc.metrics";
+
+    private final MBeanServer server;
+    private final Set<ObjectName> registered = new HashSet<>();
+    private ScheduledExecutorService refresher;
+
+    public static MetricsJmxExporter register() throws JMException {
+        MetricsJmxExporter exporter = new MetricsJmxExporter(ManagementFactory.getPlatformMBeanServer());
+        exporter.refresh();
+        exporter.start(ControlCentreConfig.getLong("N2CC_METRICS_JMX_REFRESH_MS", 10_000));
+        return exporter;
+    }
+
+    MetricsJmxExporter(MBeanServer server) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.server = server;
+    }
+
+    private void start(long refreshMs) {
+        refresher = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("n2cc-metrics-jmx", true));
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (JMException ex) {
+                    warn("Failed to refresh metrics MBeans: %s", ex.getMessage());
+                }
+            }
+        }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers an MBean for every series that does not have one yet.
+     */
+    synchronized void refresh() throws JMException {
+        List<MetricSample> samples = new ArrayList<>();
+        for (Metric metric : Metrics.families()) {
+            samples.clear();
+            metric.collect(samples);
+            Map<ObjectName, SeriesMBean> series = new LinkedHashMap<>();
+            for (MetricSample sample : samples) {
+                Map<String, String> labels = Metric.parseLabels(sample.getLabels());
+                String attribute = attributeName(metric.getName(), sample.getName(), labels.remove("le"));
+                ObjectName name = objectName(metric.getName(), labels);
+                if (registered.contains(name)) {
+                    continue;
+                }
+                SeriesMBean bean = series.get(name);
+                if (bean == null) {
+                    bean = new SeriesMBean(metric);
+                    series.put(name, bean);
+                }
+                bean.attributes.put(attribute, sample);
+            }
+            for (Map.Entry<ObjectName, SeriesMBean> entry : series.entrySet()) {
+                server.registerMBean(entry.getValue(), entry.getKey());
+                registered.add(entry.getKey());
+            }
+        }
+    }
+
+    private static String attributeName(String family, String sample, String le) {
+        if (sample.equals(family + "_bucket")) {
+            return "Bucket_" + le.replace("+", "");
+        } else if (sample.equals(family + "_sum")) {
+            return "Sum";
+        } else if (sample.equals(family + "_count")) {
+            return "Count";
+        }
+        return "Value";
+    }
+
+    static ObjectName objectName(String family, Map<String, String> labels) throws JMException {
+        Hashtable<String, String> keys = new Hashtable<>();
+        keys.put("name", family);
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            // "name" is taken by the family
+            String key = label.getKey().equals("name") ? "label_name" : label.getKey();
+            keys.put(key, quoteIfNeeded(label.getValue()));
+        }
+        return new ObjectName(DOMAIN, keys);
+    }
+
+    private static String quoteIfNeeded(String value) {
+        if (value.isEmpty()) {
+            return ObjectName.quote(value);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            switch (value.charAt(i)) {
+                case ',':
+                case '=':
+                case ':':
+                case '"':
+                case '*':
+                case '?':
+                case '\\':
+                case '\n':
+                    return ObjectName.quote(value);
+                default:
+                    break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * One series of a family. Each attribute remembers the sample it was
+     * created from and is read by matching its name and labels in a fresh
+     * collection of the family.
+     */
+    private static final class SeriesMBean implements DynamicMBean {
+
+        private final Metric metric;
+        private final Map<String, MetricSample> attributes = new LinkedHashMap<>();
+
+        SeriesMBean(Metric metric) {
+            this.metric = metric;
+        }
+
+        private static Object find(List<MetricSample> samples, MetricSample key) {
+            for (MetricSample sample : samples) {
+                if (sample.getName().equals(key.getName()) && sample.getLabels().equals(key.getLabels())) {
+                    return sample.getValue();
+                }
+            }
+            return null;
+        }
+
+        private List<MetricSample> collect() {
+            List<MetricSample> samples = new ArrayList<>();
+            metric.collect(samples);
+            return samples;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            MetricSample key = attributes.get(attribute);
+            if (key == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return find(collect(), key);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            List<MetricSample> samples = collect();
+            AttributeList values = new AttributeList();
+            for (String name : names) {
+                MetricSample key = attributes.get(name);
+                if (key != null) {
+                    values.add(new Attribute(name, find(samples, key)));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] info = new MBeanAttributeInfo[attributes.size()];
+            int i = 0;
+            for (String name : attributes.keySet()) {
+                info[i++] = new MBeanAttributeInfo(name, Double.class.getName(), metric.getHelp(),
+                        true, false, false);
+            }
+            return new MBeanInfo(MetricsJmxExporter.class.getName(), metric.getHelp(), info,
+                    null, new MBeanOperationInfo[0], null);
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.sendit.client.SClient;
+import com.whileloop.sendit.messages.SMessage;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every message the Control Centre writes to a connection goes through
+ * here, so writes are counted by message type in one place.
+ * <p>
+ * This is not write coalescing. {@code SClient.Send} writes and flushes each
+ * message on its own and does not expose the channel, so every message
+ * still costs its own flush. The only saving on the outbound side is that
+ * heartbeats are echoed on the event loop that read them (see
+ * {@link RemoteN2Agent#OnRemoteMessage}). Batching can plug in here once
+ * sendit offers a write without a flush.
+ *
+ * @author sulochana
+ */
+final class Outbound {
+
+    private static final ClassValue<LongAdder> messagesByType = new ClassValue<LongAdder>() {
+        @Override
+        protected LongAdder computeValue(Class<?> type) {
+            return Metrics.OUTBOUND_MESSAGES.labels(type.getSimpleName());
+        }
+    };
+
+    private Outbound() {
+    }
+
+    static void send(SClient client, SMessage msg) {
+        messagesByType.get(msg.getClass()).increment();
+        client.Send(msg);
+    }
+
+}
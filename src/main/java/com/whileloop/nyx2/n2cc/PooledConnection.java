@@ -0,0 +1,424 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A physical connection owned by {@link DBConnectionPool}. Each borrow hands
+ * out a fresh {@link Connection} proxy (a lease) whose {@code close()} returns
+ * the connection to the pool, and whose {@code prepareStatement} calls are
+ * served from a per-connection LRU statement cache. Multi-row INSERTs are
+ * prepared but not cached: every row count is different SQL, and caching
+ * each would evict the statements that are actually reused.
+ *
+ * @author sulochana
+ */
+final class PooledConnection {
+
+    private static final Class<?>[] CONNECTION_INTERFACE = new Class<?>[]{Connection.class};
+    private static final Class<?>[] STATEMENT_INTERFACE = new Class<?>[]{PreparedStatement.class};
+    private static final Pattern MULTI_ROW_VALUES = Pattern.compile("(?is)\\bVALUES\\s*\\(.*\\)\\s*,\\s*\\(");
+
+    private final DBConnectionPool pool;
+    private final Connection physical;
+    private final Map<StatementKey, CachedStatement> statements;
+    private volatile long lastUsed;
+    private volatile boolean broken = false;
+
+    PooledConnection(DBConnectionPool pool, Connection physical, final int cacheSize) {
+        this.pool = pool;
+        this.physical = physical;
+        this.lastUsed = System.currentTimeMillis();
+        this.statements = new LinkedHashMap<StatementKey, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatementKey, CachedStatement> eldest) {
+                if (size() <= cacheSize || eldest.getValue().inUse) {
+                    return false;
+                }
+                eldest.getValue().closePhysical();
+                return true;
+            }
+        };
+    }
+
+    Connection lease() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                CONNECTION_INTERFACE, new Lease());
+    }
+
+    Connection getPhysicalConnection() {
+        return physical;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Puts the connection back into a clean state before it is returned to
+     * the idle list.
+     *
+     * @return false if the connection could not be reset and must be discarded
+     */
+    boolean reset() {
+        try {
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            lastUsed = System.currentTimeMillis();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    void closePhysical() {
+        for (CachedStatement cached : statements.values()) {
+            cached.closePhysical();
+        }
+        statements.clear();
+        try {
+            physical.close();
+        } catch (SQLException ex) {
+            // Connection is being thrown away anyway
+        }
+    }
+
+    private void inspect(Throwable cause) {
+        if (cause instanceof SQLException) {
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && state.startsWith("08")) {
+                broken = true;
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static boolean isCacheable(Object[] args) {
+        if (args.length == 1) {
+            return true;
+        }
+        if (args.length == 2) {
+            return args[1] instanceof Integer;
+        }
+        return args.length == 3 && args[1] instanceof Integer && args[2] instanceof Integer;
+    }
+
+    private final class Lease implements InvocationHandler {
+
+        private final List<Object> openStatements = new ArrayList<>();
+        private boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + "]";
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            if ("prepareStatement".equals(name) && isCacheable(args)) {
+                return prepare(proxy, args);
+            }
+
+            try {
+                return PooledConnection.invoke(physical, method, args);
+            } catch (Throwable cause) {
+                inspect(cause);
+                throw cause;
+            }
+        }
+
+        private Object prepare(Object proxy, Object[] args) throws SQLException {
+            StatementKey key = new StatementKey(args);
+            CachedStatement cached = statements.get(key);
+            boolean hit = cached != null && !cached.inUse && !cached.statement.isClosed();
+            // A cached key is never multi-row, so only a miss pays for the scan
+            if (cached == null && key.isMultiRow()) {
+                return handle(proxy, new CachedStatement(prepare(key), key.timer(), false));
+            }
+            pool.recordStatementCache(hit);
+
+            if (!hit) {
+                PreparedStatement statement = prepare(key);
+                if (cached != null && cached.inUse) {
+                    // Same SQL is already open on this lease; hand out a one-off statement
+                    cached = new CachedStatement(statement, key.timer(), false);
+                } else {
+                    cached = new CachedStatement(statement, key.timer(), true);
+                    statements.put(key, cached);
+                }
+            }
+
+            return handle(proxy, cached);
+        }
+
+        private PreparedStatement prepare(StatementKey key) throws SQLException {
+            try {
+                return key.prepare(physical);
+            } catch (SQLException ex) {
+                inspect(ex);
+                throw ex;
+            }
+        }
+
+        private Object handle(Object proxy, CachedStatement cached) {
+            cached.inUse = true;
+            Object handle = Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    STATEMENT_INTERFACE, new StatementHandle(this, (Connection) proxy, cached));
+            openStatements.add(handle);
+            return handle;
+        }
+
+        private void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            for (Object statement : new ArrayList<>(openStatements)) {
+                ((Statement) statement).close();
+            }
+            openStatements.clear();
+            closed = true;
+            pool.release(PooledConnection.this);
+        }
+    }
+
+    private final class StatementHandle implements InvocationHandler {
+
+        private final Lease lease;
+        private final Connection connection;
+        private final CachedStatement cached;
+        private boolean closed = false;
+
+        StatementHandle(Lease lease, Connection connection, CachedStatement cached) {
+            this.lease = lease;
+            this.connection = connection;
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        lease.openStatements.remove(proxy);
+                        cached.giveBack();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || cached.statement.isClosed();
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.statement + "]";
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Statement has already been closed");
+            }
+
+            boolean execute = name.startsWith("execute");
+            long started = execute ? System.nanoTime() : 0;
+            try {
+                return PooledConnection.invoke(cached.statement, method, args);
+            } catch (Throwable cause) {
+                inspect(cause);
+                throw cause;
+            } finally {
+                if (execute) {
+                    cached.timer.observeSince(started);
+                }
+            }
+        }
+    }
+
+    private static final class CachedStatement {
+
+        private final PreparedStatement statement;
+        private final MetricHistogram.Child timer;
+        private final boolean cacheable;
+        private final int defaultMaxRows;
+        private final int defaultQueryTimeout;
+        private final int defaultFetchSize;
+        private boolean inUse = false;
+
+        CachedStatement(PreparedStatement statement, MetricHistogram.Child timer, boolean cacheable)
+                throws SQLException {
+            this.statement = statement;
+            this.timer = timer;
+            this.cacheable = cacheable;
+            this.defaultMaxRows = cacheable ? statement.getMaxRows() : 0;
+            this.defaultQueryTimeout = cacheable ? statement.getQueryTimeout() : 0;
+            this.defaultFetchSize = cacheable ? statement.getFetchSize() : 0;
+        }
+
+        void giveBack() {
+            if (!cacheable) {
+                closePhysical();
+                return;
+            }
+            try {
+                ResultSet resultSet = statement.getResultSet();
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                // Options set by one borrower must not carry over to the next
+                if (statement.getMaxRows() != defaultMaxRows) {
+                    statement.setMaxRows(defaultMaxRows);
+                }
+                if (statement.getQueryTimeout() != defaultQueryTimeout) {
+                    statement.setQueryTimeout(defaultQueryTimeout);
+                }
+                if (statement.getFetchSize() != defaultFetchSize) {
+                    statement.setFetchSize(defaultFetchSize);
+                }
+            } catch (SQLException ex) {
+                // The statement will be re-prepared on the next cache miss
+                closePhysical();
+            }
+            inUse = false;
+        }
+
+        void closePhysical() {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                // Nothing to recover
+            }
+        }
+    }
+
+    private static final class StatementKey {
+
+        private final String sql;
+        private final int[] options;
+
+        StatementKey(Object[] args) {
+            this.sql = (String) args[0];
+            this.options = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                this.options[i - 1] = (Integer) args[i];
+            }
+        }
+
+        boolean isMultiRow() {
+            return MULTI_ROW_VALUES.matcher(sql).find();
+        }
+
+        PreparedStatement prepare(Connection connection) throws SQLException {
+            switch (options.length) {
+                case 0:
+                    return connection.prepareStatement(sql);
+                case 1:
+                    return connection.prepareStatement(sql, options[0]);
+                default:
+                    return connection.prepareStatement(sql, options[0], options[1]);
+            }
+        }
+
+        /**
+         * Latency series of this statement, labelled with its verb and table
+         * (e.g. {@code select_agents}) so multi-row variants share a series.
+         */
+        MetricHistogram.Child timer() {
+            String[] words = sql.trim().replace("`", "").split("\\s+");
+            String verb = words[0].toLowerCase();
+            String table = null;
+            for (int i = 0; i < words.length - 1 && table == null; i++) {
+                String word = words[i].toUpperCase();
+                if (word.equals("FROM") || word.equals("INTO") || (i == 0 && word.equals("UPDATE"))) {
+                    table = words[i + 1].replaceAll("[^A-Za-z0-9_].*$", "").toLowerCase();
+                }
+            }
+            return Metrics.DB_QUERY_DURATION.labels(table == null ? verb : verb + "_" + table);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey key = (StatementKey) other;
+            return sql.equals(key.sql) && Arrays.equals(options, key.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + Arrays.hashCode(options);
+        }
+    }
+
+}
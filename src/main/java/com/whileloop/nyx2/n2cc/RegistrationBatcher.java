@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit for new agent registrations. Registrations are queued and
+ * inserted with one multi-row INSERT once {@code batchSize} are waiting or
+ * the oldest has waited {@code lingerMs}. Every waiting registration is then
+ * handed its generated agent_id through its callback.
+ *
+ * @author sulochana
+ */
+public final class RegistrationBatcher extends NX2Logger {
+
+    public interface Callback {
+
+        void onRegistered(int agentId);
+
+        void onFailure(Exception cause);
+    }
+
+    private final Executor dbExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final long lingerMs;
+    private final int queryTimeoutSec;
+    private final Object lock = new Object();
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private List<Registration> queue = new ArrayList<>();
+    private ScheduledFuture<?> lingerTimer;
+
+    public RegistrationBatcher(Executor dbExecutor, ScheduledExecutorService scheduler,
+            int batchSize, long lingerMs, int queryTimeoutSec) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.dbExecutor = dbExecutor;
+        this.scheduler = scheduler;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMs = lingerMs;
+        this.queryTimeoutSec = queryTimeoutSec;
+    }
+
+    public void submit(int ownerId, String authToken, Callback callback) {
+        List<Registration> ready = null;
+        synchronized (lock) {
+            queue.add(new Registration(ownerId, authToken, callback));
+            if (queue.size() >= batchSize) {
+                ready = drain();
+            } else if (queue.size() == 1) {
+                lingerTimer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Registration> expired;
+                        synchronized (lock) {
+                            expired = drain();
+                        }
+                        dispatch(expired);
+                    }
+                }, lingerMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        dispatch(ready);
+    }
+
+    public long getRegistrations() {
+        return registrations.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    private List<Registration> drain() {
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+        List<Registration> drained = queue;
+        queue = new ArrayList<>();
+        return drained;
+    }
+
+    private void dispatch(final List<Registration> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        try {
+            dbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    commit(batch);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            warn("DB executor saturated. Rejecting %d registrations", batch.size());
+            failAll(batch, ex);
+        }
+    }
+
+    private void commit(List<Registration> batch) {
+        StringBuilder query = new StringBuilder("INSERT INTO `agents` (`owner_id`, `auth_token`, `state`) VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            query.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+        }
+        query.append(';');
+
+        int[] agentIds = new int[batch.size()];
+        int assigned = 0;
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query.toString(), Statement.RETURN_GENERATED_KEYS)) {
+            statement.setQueryTimeout(queryTimeoutSec);
+            int parameter = 1;
+            for (Registration registration : batch) {
+                statement.setInt(parameter++, registration.ownerId);
+                statement.setString(parameter++, TokenIssuer.hash(registration.authToken));
+                statement.setInt(parameter++, RemoteN2Agent.State.ONLINE.value);
+            }
+            statement.executeUpdate();
+
+            // Generated keys come back in VALUES order
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                while (assigned < agentIds.length && rs.next()) {
+                    agentIds[assigned++] = rs.getInt(1);
+                }
+            }
+            if (assigned != agentIds.length) {
+                throw new SQLException(String.format("Expected %d generated keys, got %d", agentIds.length, assigned));
+            }
+
+        } catch (SQLException ex) {
+            crit("Failed to register batch of %d NX2Agents: %s", batch.size(), ex.getMessage());
+            failAll(batch, ex);
+            return;
+        }
+
+        registrations.addAndGet(batch.size());
+        batches.incrementAndGet();
+        debug("Registered %d new NX2Agents in one batch", batch.size());
+        for (int i = 0; i < agentIds.length; i++) {
+            try {
+                batch.get(i).callback.onRegistered(agentIds[i]);
+            } catch (RuntimeException ex) {
+                crit("Registration callback for NX2A-%d failed: %s", agentIds[i], ex.getMessage());
+            }
+        }
+    }
+
+    private void failAll(List<Registration> batch, Exception cause) {
+        for (Registration registration : batch) {
+            try {
+                registration.callback.onFailure(cause);
+            } catch (RuntimeException ex) {
+                crit("Registration failure callback failed: %s", ex.getMessage());
+            }
+        }
+    }
+
+    private static final class Registration {
+
+        private final int ownerId;
+        private final String authToken;
+        private final Callback callback;
+
+        Registration(int ownerId, String authToken, Callback callback) {
+            this.ownerId = ownerId;
+            this.authToken = authToken;
+            this.callback = callback;
+        }
+    }
+
+}
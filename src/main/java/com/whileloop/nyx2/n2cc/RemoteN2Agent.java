@@ -26,27 +26,20 @@ package com.whileloop.nyx2.n2cc;
 import com.whileloop.nyx2.messages.HeartBeatMessage;
 import com.whileloop.nyx2.messages.LoginResponseMessage;
 import com.whileloop.nyx2.messages.TerminationMessage;
-import com.whileloop.nyx2.utils.NX2IntervalClock;
-import com.whileloop.nyx2.utils.NX2Logger;
 import com.whileloop.sendit.client.SClient;
 import com.whileloop.sendit.messages.SMessage;
-import io.netty.channel.nio.NioEventLoopGroup;
-import java.security.SecureRandom;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
  * @author sulochana
  */
-public class RemoteN2Agent extends NX2Logger implements NX2IntervalClock.NX2IntervalClockCallback {
+public class RemoteN2Agent {
 
     public enum State {
 
@@ -61,151 +54,359 @@ public class RemoteN2Agent extends NX2Logger implements NX2IntervalClock.NX2Inte
         }
     }
 
-    private static final Map<UUID, RemoteN2Agent> connections = new HashMap<>();
-    private static final NioEventLoopGroup agentEventLoopGroup = new NioEventLoopGroup();
+    static final int DEFAULT_OWNER_ID = 21;
 
-    public synchronized static void registerN2A(RemoteN2Agent agent) {
-        connections.put(agent.agentUUID, agent);
+    private static final HotPathLogger log = HotPathLogger.getLogger(RemoteN2Agent.class);
+    private static final MetricHistogram.Child hbJitter = Metrics.HB_JITTER.labels();
+    private static final LongAdder hbMisses = Metrics.HB_MISSES.labels();
+    private static final LongAdder hbDisconnects = Metrics.HB_DISCONNECTS.labels();
+    private static final LongAdder clockSkewTerminations = Metrics.CLOCK_SKEW_TERMINATIONS.labels();
+
+    private static final AgentRegistry registry = new AgentRegistry();
+    private static final HeartbeatTracker heartbeatTracker = new HeartbeatTracker(
+            ControlCentreConfig.getLong("N2CC_HB_INTERVAL_MS", 5000),
+            ControlCentreConfig.getInt("N2CC_HB_ALLOWED_MISSES", 5),
+            ControlCentreConfig.getInt("N2CC_HB_WHEEL_SIZE", 50),
+            ControlCentreConfig.getInt("N2CC_HB_INITIAL_CAPACITY", 1024));
+
+    /**
+     * Starts the heartbeat wheel on {@code scheduler}, one of the worker
+     * event loops.
+     */
+    static void startHeartbeatTracking(ScheduledExecutorService scheduler) {
+        heartbeatTracker.start(scheduler);
     }
 
-    public synchronized static RemoteN2Agent findAgent(UUID uuid) {
-        if (uuid == null) {
-            return null;
-        }
-        return connections.get(uuid);
+    public static void registerN2A(RemoteN2Agent agent) {
+        registry.register(agent);
     }
 
-    public synchronized static void deregisterAgent(UUID uuid) {
-        if (uuid == null) {
-            return;
-        }
-        connections.remove(uuid);
+    public static RemoteN2Agent findAgent(UUID uuid) {
+        return registry.find(uuid);
+    }
+
+    public static void deregisterAgent(UUID uuid) {
+        registry.deregister(uuid);
+    }
+
+    public static AgentRegistry getRegistry() {
+        return registry;
     }
 
     private final SClient client;
     private final UUID agentUUID;
-    private final NX2IntervalClock hbScanner;
-    private final int allowedHbMisses = 5;
+    private final SerialExecutor executor;
     private LoginResponseMessage.ResponseType registrationOutput;
-    private long lastHB = 0x0;
-    private int bhMissCount = 0;
+    private int hbSlot = -1;
+    private int statusRow = -1;
+    private volatile State state = State.OFFLINE;
+    private long lastHbArrival = 0;
+    private long lastHbInterval = 0;
     private int agentId = -1;
-    private String authToken;
+    private final int ownerId;
+    private final String authToken;
+    private final byte[] authTokenDigest;
+    private byte[] previousTokenDigest;
+    private volatile boolean disconnected = false;
+    private volatile String connectionInfo;
 
-    public RemoteN2Agent(SClient client, int agentId) {
-        setVerboseLevel(Loglevel.DEBUG);
+    public RemoteN2Agent(SClient client, int agentId, int ownerId) {
+        this(client, agentId, ownerId, UUID.randomUUID(), null);
+    }
+
+    /**
+     * @param agentUUID the UUID of a session being resumed, or a new one
+     * @param previousTokenDigest digest of the token the agent logged in
+     * with, which stays valid until the agent has received its new one, or
+     * null for a new agent
+     */
+    RemoteN2Agent(SClient client, int agentId, int ownerId, UUID agentUUID, byte[] previousTokenDigest) {
         this.client = client;
-        this.agentUUID = UUID.randomUUID();
-        this.hbScanner = new NX2IntervalClock(agentEventLoopGroup, this, 5, TimeUnit.SECONDS);
+        this.agentUUID = agentUUID;
         this.client.attachUuid(this.agentUUID);
-        this.authToken = generateSecureToken();
+        this.executor = new SerialExecutor(AgentService.getInstance().getAgentExecutor());
+        this.authToken = TokenIssuer.getInstance().issue();
+        this.authTokenDigest = TokenIssuer.digest(this.authToken);
+        this.previousTokenDigest = previousTokenDigest;
         this.agentId = agentId;
+        this.ownerId = ownerId;
+        this.connectionInfo = formatConnectionInfo();
+    }
 
-        try {
-            if (agentId == -1) {
-                registerNewOnDatabase();
-            } else {
-                updateExistingRegistration();
+    /**
+     * Rotates the auth token of an already registered agent, keeping the
+     * token it logged in with as {@code previous_auth_token}. Blocks on the
+     * database, so it must only be called from the DB executor.
+     *
+     * @param verifyToken only rotate if the token the agent logged in with
+     * is still its {@code auth_token} or {@code previous_auth_token}
+     * @return false if the token was to be verified and is no longer valid
+     */
+    boolean register(int queryTimeoutSec, boolean verifyToken) throws SQLException {
+        return updateExistingRegistration(queryTimeoutSec, verifyToken);
+    }
+
+    /**
+     * Called once the registration group commit has assigned an agent_id.
+     */
+    void onRegistered(int agentId) {
+        this.agentId = agentId;
+        this.connectionInfo = formatConnectionInfo();
+        log.info("Connection from %s registered as NX2A-%d", getRemoteEndpoint(), this.agentId);
+    }
+
+    /**
+     * Runs {@code task} after everything already submitted for this agent.
+     * All of the agent's state is only touched from tasks run this way.
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Starts tracking the agent, makes it visible to message routing and
+     * answers the pending login, unless the connection has been closed in
+     * the meantime.
+     */
+    void completeLogin() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (disconnected) {
+                    log.debug("Connection of %s closed during login", connectionInfo);
+                    return;
+                }
+                registrationOutput = LoginResponseMessage.ResponseType.SUCCESS;
+                statusRow = AgentService.getInstance().getFleetStatus().onLogin(agentId, ownerId,
+                        System.currentTimeMillis());
+                // Registered first, so a stale session of the same agent id
+                // can no longer write its state over this one
+                registerN2A(RemoteN2Agent.this);
+                setState(State.ONLINE);
+                hbSlot = heartbeatTracker.track(RemoteN2Agent.this);
+                sendLoginResponse();
             }
-            registerN2A(this);
-            this.registrationOutput = LoginResponseMessage.ResponseType.SUCCESS;
-        } catch (Exception ex) {
-            this.registrationOutput = LoginResponseMessage.ResponseType.INTERNAL_ERROR;
-            crit("Failed to register/recognize NX2Agent: %s", ex.getMessage());
-        } finally {
-            sendLoginResponse();
+        });
+    }
+
+    public void OnRemoteMessage(final SMessage msg) {
+        if (msg instanceof HeartBeatMessage) {
+            // Echo from the event loop that read it: no hop through the agent
+            // executor and no cross-thread write task to wake the loop for
+            send(msg);
         }
+        final MessageDispatcher dispatcher = AgentService.getInstance().getDispatcher();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatch(RemoteN2Agent.this, msg);
+            }
+        });
+    }
 
+    /**
+     * Called for a connection closed after login, or during one once the
+     * agent has been created. Safe to call more than once.
+     */
+    public void OnDisconnect() {
+        disconnected = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                log.debug("RemoteN2A disconnected: %s", connectionInfo);
+                registry.deregister(RemoteN2Agent.this);
+                heartbeatTracker.untrack(hbSlot, RemoteN2Agent.this);
+                if (state == State.ONLINE) {
+                    setState(State.OFFLINE);
+                }
+            }
+        });
     }
 
-    @Override
-    public void OnInterval(NX2IntervalClock clock) {
-        if (clock == this.hbScanner) {
-            clockHbScannerFired();
+    void handleHeartBeatMessage(HeartBeatMessage heartBeatMessage) {
+        log.debug("HB Recieved from %s", connectionInfo);
+        if (previousTokenDigest != null) {
+            confirmTokenRotation();
         }
+        heartbeatTracker.heartbeat(this.hbSlot, this);
+        long now = System.currentTimeMillis();
+        // Agent clock minus Control Centre clock, positive when the agent is ahead
+        long clockSkew = heartBeatMessage.getCreationTime() - now;
+        AgentService.getInstance().getFleetStatus().onHeartbeat(this.statusRow, now, clockSkew);
+        TelemetryIngestor telemetry = AgentService.getInstance().getTelemetry();
+        long interval = recordHeartBeatArrival(System.nanoTime());
+        if (interval != 0) {
+            telemetry.offer(this.agentId, TelemetryIngestor.SERIES_HEARTBEAT_INTERVAL, now, interval / 1000000.0);
+        }
+        telemetry.offer(this.agentId, TelemetryIngestor.SERIES_CLOCK_SKEW, now, clockSkew);
+        checkRemoteSystemTime(clockSkew);
     }
 
-    public void OnRemoteMessage(SMessage msg) {
-        if (msg instanceof HeartBeatMessage) {
-            handleHeartBeatMessage((HeartBeatMessage) msg);
-        } else {
-            debug("Unknown message ignored: %s", msg.getClass().getName());
+    /**
+     * @return nanoseconds since the previous heartbeat, 0 for the first one
+     */
+    private long recordHeartBeatArrival(long now) {
+        long interval = 0;
+        if (this.lastHbArrival != 0) {
+            interval = now - this.lastHbArrival;
+            if (this.lastHbInterval != 0) {
+                hbJitter.observeNanos(Math.abs(interval - this.lastHbInterval));
+            }
+            this.lastHbInterval = interval;
         }
+        this.lastHbArrival = now;
+        return interval;
     }
 
-    public synchronized void OnDisconnect() {
-        debug("RemoteN2A disconnected: %s", getConnectionInfo());
-        this.hbScanner.stop();
+    /**
+     * The agent heartbeats only once it has its login response, so it holds
+     * the rotated token and the one it logged in with can stop working.
+     */
+    private void confirmTokenRotation() {
+        AgentService.getInstance().getTokenCache().invalidate(previousTokenDigest);
+        AgentService.getInstance().getStateWriter().recordTokenConfirmed(this.agentId,
+                TokenIssuer.toHex(previousTokenDigest));
+        previousTokenDigest = null;
     }
 
-    private synchronized void handleHeartBeatMessage(HeartBeatMessage heartBeatMessage) {
-        debug("HB Recieved from %s", getConnectionInfo());
-        client.Send(heartBeatMessage);
-        this.lastHB = System.currentTimeMillis();
-        if (this.bhMissCount > 0) {
-            info("Connection restored by %s", getConnectionInfo());
-            this.bhMissCount = 0;
-        }
-        checkRemoteSystemTime(heartBeatMessage.getCreationTime());
+    void onHeartbeatMissed(int missCount, int allowedMisses) {
+        hbMisses.increment();
+        log.warn("HB missed by %s. [%d/%d]", connectionInfo, missCount, allowedMisses);
     }
 
-    private synchronized void handleHbMissCountReached() {
-        warn("Maximum allowed HB miss count reached for %s. Disconnecting agent", getConnectionInfo());
-        this.hbScanner.stop();
-        this.client.closeConnection();
+    void onHeartbeatRestored() {
+        log.info("Connection restored by %s", connectionInfo);
     }
 
-    private void checkRemoteSystemTime(long time) {
-        long timeDifference;
-        timeDifference = System.currentTimeMillis() - time;
+    void handleHbMissCountReached() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                log.warn("Maximum allowed HB miss count reached for %s. Disconnecting agent", connectionInfo);
+                hbDisconnects.increment();
+                disconnected = true;
+                // The connection may already be gone without a disconnect callback to come
+                registry.deregister(RemoteN2Agent.this);
+                setState(State.DISCONNECTED);
+                client.closeConnection();
+            }
+        });
+    }
 
-        if (Math.abs(timeDifference) > 300000) {
-            warn("Unacceptable time difference detected: %dms. Sending termination request", timeDifference);
-            client.Send(new TerminationMessage("Unacceptable time difference detected. Please check your system clock"));
+    private void checkRemoteSystemTime(long clockSkew) {
+        if (Math.abs(clockSkew) > 300000) {
+            log.warn("Unacceptable time difference detected for %s: %dms. Sending termination request",
+                    connectionInfo, clockSkew);
+            clockSkewTerminations.increment();
+            send(new TerminationMessage("Unacceptable time difference detected. Please check your system clock"));
         }
     }
 
-    private synchronized void clockHbScannerFired() {
-        if ((System.currentTimeMillis() - this.lastHB) <= this.hbScanner.getIntervalToSeconds()) {
-            return;
-        }
+    /**
+     * Writes a message to the agent's connection from any thread.
+     */
+    void send(SMessage msg) {
+        Outbound.send(client, msg);
+    }
+
+    /**
+     * Persists the state only while this is the agent's current session: a
+     * stale session torn down after the agent logged in again must not
+     * overwrite the state of the new one.
+     */
+    void setState(final State state) {
+        this.state = state;
+        registry.runIfCurrent(this, new Runnable() {
+            @Override
+            public void run() {
+                AgentService.getInstance().getStateWriter().record(agentId, state);
+                AgentService.getInstance().getFleetStatus().onStateChange(statusRow, state,
+                        System.currentTimeMillis());
+            }
+        });
+    }
 
-        this.bhMissCount++;
-        warn("HB missed by %s. [%d/%d]", getConnectionInfo(), this.bhMissCount, this.allowedHbMisses);
+    public State getState() {
+        return state;
+    }
 
-        if (this.bhMissCount >= this.allowedHbMisses) {
-            handleHbMissCountReached();
-        }
+    public UUID getAgentUUID() {
+        return agentUUID;
     }
 
-    private String getConnectionInfo() {
-        return String.format("NX2A-%d [%s:%d]", this.agentId, client.getRemoteHostAddress(), client.getRemotePort());
+    public int getAgentId() {
+        return agentId;
     }
 
-    private void registerNewOnDatabase() throws SQLException {
-        debug("Registering new NX2Agent");
-        String query = "INSERT INTO `agents` (`owner_id`, `auth_token`, `state`) VALUES (?, ?, ?);";
-        PreparedStatement statement = DBConnection.getConnection().prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-        statement.setInt(1, 21);
-        statement.setString(2, this.authToken);
-        statement.setInt(3, State.ONLINE.value);
-        statement.executeUpdate();
-        ResultSet rs = statement.getGeneratedKeys();
-        rs.next();
-        this.agentId = rs.getInt(1);
-        info("Connection from %s:%d registered as NX2A-%d",
-                client.getRemoteHostAddress(), client.getRemotePort(), this.agentId);
+    public int getOwnerId() {
+        return ownerId;
     }
 
-    private void updateExistingRegistration() throws SQLException {
-        debug("Recognizing existing NX2Agent (@%d)", this.agentId);
-        String query = "UPDATE `agents` SET `auth_token`= ? WHERE `agent_id`= ?;";
-        PreparedStatement statement = DBConnection.getConnection().prepareStatement(query);
-        statement.setString(1, this.authToken);
-        statement.setInt(2, this.agentId);
-        statement.executeUpdate();
-        info("Connection from %s:%d recognized as NX2A-%d",
-                client.getRemoteHostAddress(), client.getRemotePort(), this.agentId);
+    String getAuthToken() {
+        return authToken;
+    }
+
+    byte[] getAuthTokenDigest() {
+        return authTokenDigest;
+    }
+
+    /**
+     * The new token as stored in {@code agents.auth_token}.
+     */
+    String getAuthTokenHash() {
+        return TokenIssuer.toHex(authTokenDigest);
+    }
+
+    /**
+     * @return the hash of the token the agent logged in with, or null
+     */
+    String getPreviousTokenHash() {
+        return previousTokenDigest == null ? null : TokenIssuer.toHex(previousTokenDigest);
+    }
+
+    int getStatusRow() {
+        return statusRow;
+    }
+
+    public String getRemoteAddress() {
+        return client.getRemoteHostAddress();
+    }
+
+    /**
+     * Formatted once per agent id rather than on every log call.
+     */
+    private String formatConnectionInfo() {
+        return String.format("NX2A-%d [%s]", this.agentId, getRemoteEndpoint());
+    }
+
+    private String getRemoteEndpoint() {
+        return client.getRemoteHostAddress() + ":" + client.getRemotePort();
+    }
+
+    private boolean updateExistingRegistration(int queryTimeoutSec, boolean verifyToken) throws SQLException {
+        log.debug("Recognizing existing NX2Agent (@%d)", this.agentId);
+        String query = verifyToken
+                ? "UPDATE `agents` SET `auth_token`= ?, `previous_auth_token` = ? WHERE `agent_id`= ? "
+                + "AND (`auth_token` = ? OR `previous_auth_token` = ?);"
+                : "UPDATE `agents` SET `auth_token`= ?, `previous_auth_token` = ? WHERE `agent_id`= ?;";
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setQueryTimeout(queryTimeoutSec);
+            statement.setString(1, getAuthTokenHash());
+            statement.setString(2, getPreviousTokenHash());
+            statement.setInt(3, this.agentId);
+            if (verifyToken) {
+                statement.setString(4, getPreviousTokenHash());
+                statement.setString(5, getPreviousTokenHash());
+            }
+            if (statement.executeUpdate() == 0 && verifyToken) {
+                log.warn("Connection from %s presented a token NX2A-%d no longer holds", getRemoteEndpoint(),
+                        this.agentId);
+                return false;
+            }
+        }
+        log.info("Connection from %s recognized as NX2A-%d", getRemoteEndpoint(), this.agentId);
+        return true;
     }
 
     private void sendLoginResponse() {
@@ -214,15 +415,8 @@ public class RemoteN2Agent extends NX2Logger implements NX2IntervalClock.NX2Inte
             msg.setAgentUUID(this.agentUUID);
             msg.setAuthToken(this.authToken);
         }
-        debug("Sending LoginResponseMessage to %s", getConnectionInfo());
-        client.Send(msg);
-    }
-
-    private String generateSecureToken() {
-        SecureRandom random = new SecureRandom();
-        byte bytes[] = new byte[128];
-        random.nextBytes(bytes);
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes).substring(0, 128);
+        log.debug("Sending LoginResponseMessage to %s", connectionInfo);
+        send(msg);
     }
 
 }
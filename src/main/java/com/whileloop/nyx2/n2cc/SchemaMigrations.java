@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned changes to the Control Centre's tables. The highest applied
+ * version is recorded in {@code n2cc_schema_version}. A released migration
+ * is never edited; a fix to it is a new migration.
+ * <p>
+ * Migrating is an operator step, run before the new build is started:
+ * <pre>
+ * java -cp N2CC.jar com.whileloop.nyx2.n2cc.SchemaMigrations
+ * </pre>
+ * The Control Centre only checks the version at startup and refuses to
+ * start against an older schema, unless {@code N2CC_DB_MIGRATE} is set. On
+ * MySQL the migrations run under {@code GET_LOCK}, so two processes
+ * migrating at once apply each migration once.
+ *
+ * @author sulochana
+ */
+public final class SchemaMigrations extends NX2Logger {
+
+    interface Migration {
+
+        void apply(Connection connection) throws SQLException;
+    }
+
+    private static final String LOCK_NAME = "n2cc_schema_migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 300;
+    private static final int ROWS_PER_BATCH = 500;
+
+    private final List<Migration> migrations = new ArrayList<>();
+
+    public static void main(String[] args) {
+        SchemaMigrations schema = new SchemaMigrations();
+        try {
+            new DBConnection();
+            schema.migrate();
+        } catch (ClassNotFoundException | SQLException ex) {
+            schema.crit("Schema migration failed: %s", ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    public SchemaMigrations() {
+        this.setVerboseLevel(Loglevel.INFO);
+        // 1: the token an agent logged in with stays valid until it confirms the rotated one
+        migrations.add(sql(
+                "ALTER TABLE `agents` ADD COLUMN `previous_auth_token` CHAR(64) NULL;",
+                "CREATE INDEX `agents_previous_auth_token` ON `agents` (`previous_auth_token`);"));
+        // 2: tokens stored before auth_token held hashes
+        migrations.add(new Migration() {
+            @Override
+            public void apply(Connection connection) throws SQLException {
+                hashLegacyTokens(connection);
+            }
+        });
+        // 3: compressed agent telemetry, see TelemetryIngestor
+        migrations.add(sql(
+                "CREATE TABLE IF NOT EXISTS `agent_telemetry` ("
+                + "`agent_id` INT NOT NULL, "
+                + "`series` VARCHAR(64) NOT NULL, "
+                + "`start_ms` BIGINT NOT NULL, "
+                + "`end_ms` BIGINT NOT NULL, "
+                + "`sample_count` INT NOT NULL, "
+                + "`data` BLOB NOT NULL);",
+                "CREATE INDEX `agent_telemetry_series` ON `agent_telemetry` (`agent_id`, `series`, `start_ms`);"));
+    }
+
+    /**
+     * Applies every migration newer than the recorded schema version.
+     *
+     * @return the number of migrations applied
+     */
+    public int migrate() throws SQLException {
+        try (Connection connection = DBConnection.getConnection()) {
+            boolean locked = lock(connection);
+            try {
+                return migrate(connection);
+            } finally {
+                if (locked) {
+                    unlock(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the latest version this build knows
+     */
+    public int getLatestVersion() {
+        return migrations.size();
+    }
+
+    /**
+     * @return the version the database is at, 0 if it was never migrated
+     */
+    public int getCurrentVersion() throws SQLException {
+        try (Connection connection = DBConnection.getConnection()) {
+            createVersionTable(connection);
+            return getVersion(connection);
+        }
+    }
+
+    private int migrate(Connection connection) throws SQLException {
+        createVersionTable(connection);
+        // Read under the lock, another process may have migrated while we waited
+        int current = getVersion(connection);
+        for (int version = current + 1; version <= migrations.size(); version++) {
+            info("Applying schema migration %d", version);
+            migrations.get(version - 1).apply(connection);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO `n2cc_schema_version` (`version`, `applied_ms`) VALUES (?, ?);")) {
+                statement.setInt(1, version);
+                statement.setLong(2, System.currentTimeMillis());
+                statement.executeUpdate();
+            }
+        }
+        if (current < migrations.size()) {
+            info("Schema migrated from version %d to %d", current, migrations.size());
+        } else {
+            info("Schema is up to date at version %d", current);
+        }
+        return Math.max(0, migrations.size() - current);
+    }
+
+    /**
+     * Takes the MySQL named lock that serialises migrations. It belongs to
+     * the session, so it survives the implicit commits of DDL statements.
+     *
+     * @return false if the database has no named locks
+     */
+    private boolean lock(Connection connection) throws SQLException {
+        if (!"MySQL".equals(connection.getMetaData().getDatabaseProductName())) {
+            warn("%s has no named locks. Do not migrate from two processes at once",
+                    connection.getMetaData().getDatabaseProductName());
+            return false;
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?);")) {
+            statement.setString(1, LOCK_NAME);
+            statement.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || resultSet.getInt(1) != 1) {
+                    throw new SQLException(String.format(
+                            "Timed out after %ds waiting for another process to finish migrating", LOCK_TIMEOUT_SECONDS));
+                }
+            }
+        }
+        return true;
+    }
+
+    private void unlock(Connection connection) {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?);")) {
+            statement.setString(1, LOCK_NAME);
+            statement.executeQuery().close();
+        } catch (SQLException ex) {
+            // Released anyway when the session ends
+            warn("Failed to release the schema migration lock: %s", ex.getMessage());
+        }
+    }
+
+    private static void createVersionTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `n2cc_schema_version` ("
+                    + "`version` INT NOT NULL PRIMARY KEY, "
+                    + "`applied_ms` BIGINT NOT NULL);");
+        }
+    }
+
+    private void hashLegacyTokens(Connection connection) throws SQLException {
+        int hashed = 0;
+        try (Statement select = connection.createStatement();
+                ResultSet resultSet = select.executeQuery(
+                        "SELECT `agent_id`, `auth_token` FROM `agents` WHERE `auth_token` IS NOT NULL;");
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE `agents` SET `auth_token` = ? WHERE `agent_id` = ?;")) {
+            while (resultSet.next()) {
+                String token = resultSet.getString(2).trim();
+                if (TokenIssuer.isHash(token)) {
+                    continue;
+                }
+                update.setString(1, TokenIssuer.hash(token));
+                update.setInt(2, resultSet.getInt(1));
+                update.addBatch();
+                if (++hashed % ROWS_PER_BATCH == 0) {
+                    update.executeBatch();
+                }
+            }
+            if (hashed % ROWS_PER_BATCH != 0) {
+                update.executeBatch();
+            }
+        }
+        info("Hashed %d legacy auth tokens", hashed);
+    }
+
+    private static int getVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT MAX(`version`) FROM `n2cc_schema_version`;")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static Migration sql(final String... statements) {
+        return new Migration() {
+            @Override
+            public void apply(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement()) {
+                    for (String sql : statements) {
+                        statement.execute(sql);
+                    }
+                }
+            }
+        };
+    }
+
+}
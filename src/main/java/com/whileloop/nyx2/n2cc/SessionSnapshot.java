@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Periodic checkpoint of the logged in agents' sessions to a memory-mapped
+ * file, so that agents reconnecting after a Control Centre restart can log
+ * in without a token lookup in the database. The file is a header followed
+ * by one fixed size record per agent:
+ * <pre>
+ * header: magic, version, count, crc32 of the records, written at (ms), reserved
+ * record: agent_id, owner_id, agent UUID, SHA-256 of the auth token, last heartbeat (ms)
+ * </pre>
+ * A checkpoint rewrites the records in place and the header last, so a
+ * checkpoint interrupted by a crash fails the CRC check and the snapshot is
+ * ignored on the next start.
+ * <p>
+ * On startup the sessions of a snapshot younger than {@code maxAgeMs} are
+ * loaded and each can be {@link #resume resumed} once, by the token the
+ * agent held when the checkpoint was taken. That token may have been
+ * rotated or confirmed since, so the {@link LoginPipeline} still checks it
+ * against the database when it rotates it.
+ *
+ * @author sulochana
+ */
+public final class SessionSnapshot extends NX2Logger {
+
+    private static final int MAGIC = 0x4e32534e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 64;
+    private static final int DIGEST_SIZE = 32;
+
+    private final File file;
+    private final Executor executor;
+    private final AgentRegistry registry;
+    private final FleetStatus fleetStatus;
+    private final long intervalMs;
+    private final long maxAgeMs;
+    private final ConcurrentHashMap<AuthTokenCache.TokenKey, Session> resumable = new ConcurrentHashMap<>();
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+    // Held while the mapped buffer is written
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // Guarded by checkpointLock
+    private boolean closed = false;
+    private final AtomicLong resumes = new AtomicLong();
+    private volatile long snapshotTakenMs = 0;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private ScheduledFuture<?> ticker;
+
+    private final Runnable checkpointTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                checkpoint();
+            } finally {
+                checkpointScheduled.set(false);
+            }
+        }
+    };
+
+    public SessionSnapshot(File file, Executor executor, AgentRegistry registry, FleetStatus fleetStatus,
+            long intervalMs, long maxAgeMs) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.file = file;
+        this.executor = executor;
+        this.registry = registry;
+        this.fleetStatus = fleetStatus;
+        this.intervalMs = intervalMs;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Loads the sessions of the previous run and starts the periodic
+     * checkpoint.
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        try {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            load();
+        } catch (IOException ex) {
+            warn("Session snapshot %s is unavailable: %s", file, ex.getMessage());
+            return;
+        }
+        this.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                requestCheckpoint();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        info("Session snapshot started. %d resumable sessions, checkpoint interval: %dms",
+                resumable.size(), intervalMs);
+    }
+
+    /**
+     * Stops the periodic checkpoint and takes a final one on the calling
+     * thread, after waiting for a checkpoint in progress. A checkpoint still
+     * queued on the executor finds the snapshot closed and does nothing.
+     */
+    public void shutdown() {
+        if (this.ticker == null) {
+            return;
+        }
+        this.ticker.cancel(false);
+        checkpointLock.lock();
+        try {
+            checkpoint();
+            closed = true;
+        } finally {
+            checkpointLock.unlock();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // The mapping stays valid until it is collected
+        }
+        info("Session snapshot stopped. %d sessions resumed", resumes.get());
+    }
+
+    /**
+     * Claims the session checkpointed for {@code authToken}.
+     *
+     * @return the session, or null if there is none or it has already been
+     * resumed
+     */
+    public Session resume(String authToken) {
+        if (resumable.isEmpty() || authToken == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - snapshotTakenMs > maxAgeMs) {
+            resumable.clear();
+            return null;
+        }
+        Session session = resumable.remove(AuthTokenCache.TokenKey.of(authToken));
+        if (session != null) {
+            resumes.incrementAndGet();
+        }
+        return session;
+    }
+
+    public int getResumableCount() {
+        return resumable.size();
+    }
+
+    public long getResumes() {
+        return resumes.get();
+    }
+
+    private void requestCheckpoint() {
+        if (!checkpointScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(checkpointTask);
+        } catch (RejectedExecutionException ex) {
+            checkpointScheduled.set(false);
+            debug("Executor saturated. Skipping session checkpoint");
+        }
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            return;
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int count = mapped.getInt(8);
+        long writtenAtMs = mapped.getLong(16);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || count < 0
+                || HEADER_SIZE + (long) count * RECORD_SIZE > size) {
+            warn("Ignoring session snapshot %s: unrecognized format", file);
+            return;
+        }
+        if (crc(mapped, count) != mapped.getInt(12)) {
+            warn("Ignoring session snapshot %s: checksum mismatch", file);
+            return;
+        }
+        long age = System.currentTimeMillis() - writtenAtMs;
+        if (age > maxAgeMs) {
+            info("Ignoring session snapshot %s: %dms old", file, age);
+            return;
+        }
+
+        byte[] digest = new byte[DIGEST_SIZE];
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            int agentId = mapped.getInt(offset);
+            int ownerId = mapped.getInt(offset + 4);
+            UUID agentUUID = new UUID(mapped.getLong(offset + 8), mapped.getLong(offset + 16));
+            ByteBuffer record = mapped.duplicate();
+            record.position(offset + 24);
+            record.get(digest);
+            long lastHeartbeatMs = mapped.getLong(offset + 56);
+            resumable.put(AuthTokenCache.TokenKey.of(digest),
+                    new Session(agentId, ownerId, agentUUID, lastHeartbeatMs));
+        }
+        this.buffer = mapped;
+        this.snapshotTakenMs = writtenAtMs;
+        info("Loaded %d sessions from %s, checkpointed %dms ago", count, file, age);
+    }
+
+    private void checkpoint() {
+        checkpointLock.lock();
+        try {
+            if (!closed) {
+                write(registry.snapshot());
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void write(List<RemoteN2Agent> agents) {
+        try {
+            ensureCapacity(HEADER_SIZE + (long) agents.size() * RECORD_SIZE);
+        } catch (IOException ex) {
+            crit("Failed to grow session snapshot %s: %s", file, ex.getMessage());
+            return;
+        }
+
+        int count = 0;
+        for (RemoteN2Agent agent : agents) {
+            if (agent.getAgentId() < 0) {
+                continue;
+            }
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            UUID agentUUID = agent.getAgentUUID();
+            buffer.putInt(offset, agent.getAgentId());
+            buffer.putInt(offset + 4, agent.getOwnerId());
+            buffer.putLong(offset + 8, agentUUID.getMostSignificantBits());
+            buffer.putLong(offset + 16, agentUUID.getLeastSignificantBits());
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 24);
+            record.put(agent.getAuthTokenDigest());
+            buffer.putLong(offset + 56, fleetStatus.getLastHeartbeatMs(agent.getStatusRow()));
+            count++;
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, count);
+        buffer.putInt(12, crc(buffer, count));
+        buffer.putLong(16, System.currentTimeMillis());
+        buffer.force();
+        debug("Checkpointed %d sessions", count);
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (buffer != null && buffer.capacity() >= required) {
+            return;
+        }
+        long capacity = Math.max(required, buffer == null ? HEADER_SIZE + 1024L * RECORD_SIZE : buffer.capacity() * 2L);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static int crc(ByteBuffer mapped, int count) {
+        ByteBuffer records = mapped.duplicate();
+        records.position(HEADER_SIZE);
+        records.limit(HEADER_SIZE + count * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * An agent session as it was at the last checkpoint.
+     */
+    public static final class Session {
+
+        private final int agentId;
+        private final int ownerId;
+        private final UUID agentUUID;
+        private final long lastHeartbeatMs;
+
+        Session(int agentId, int ownerId, UUID agentUUID, long lastHeartbeatMs) {
+            this.agentId = agentId;
+            this.ownerId = ownerId;
+            this.agentUUID = agentUUID;
+            this.lastHeartbeatMs = lastHeartbeatMs;
+        }
+
+        public int getAgentId() {
+            return agentId;
+        }
+
+        public int getOwnerId() {
+            return ownerId;
+        }
+
+        public UUID getAgentUUID() {
+            return agentUUID;
+        }
+
+        public long getLastHeartbeatMs() {
+            return lastHeartbeatMs;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How long each phase of the Control Centre startup took, exported as a
+ * gauge per phase.
+ *
+ * @author sulochana
+ */
+final class StartupPhases extends Metric {
+
+    private final ConcurrentHashMap<String, Double> seconds = new ConcurrentHashMap<>();
+
+    StartupPhases() {
+        super("n2cc_startup_phase_seconds", "Wall clock time of each startup phase", "phase");
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    void record(String phase, long nanos) {
+        seconds.put(labelKey(phase), nanos / 1e9);
+    }
+
+    @Override
+    void collect(List<MetricSample> samples) {
+        for (Map.Entry<String, Double> phase : seconds.entrySet()) {
+            samples.add(new MetricSample(getName(), phase.getKey(), phase.getValue()));
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ingestion stage for agent telemetry. Producers on any thread
+ * {@link #offer} samples into a bounded lock-free ring buffer; a sample that
+ * finds the ring full is dropped and counted, so a slow database never
+ * blocks the threads handling agent messages. Every flush interval the ring
+ * is drained on the DB executor into one buffer per agent and series. A
+ * buffer is carried across flushes until it holds {@code minChunkSamples}
+ * samples or is {@code maxChunkAgeMs} old, then it is compressed into a
+ * {@link TelemetryChunk} and written to {@code agent_telemetry} (created by
+ * {@link SchemaMigrations}) with the other ready buffers in one JDBC batch.
+ * Short chunks compress poorly, so the carried buffers trade memory and the
+ * samples lost on a crash for the size of what is stored.
+ *
+ * @author sulochana
+ */
+public final class TelemetryIngestor extends NX2Logger {
+
+    /** Agent clock minus Control Centre clock, from each heartbeat. */
+    static final int SERIES_CLOCK_SKEW = 0;
+    /** Time since the agent's previous heartbeat arrived. */
+    static final int SERIES_HEARTBEAT_INTERVAL = 1;
+
+    private static final int ROWS_PER_BATCH = 500;
+    // Stored in tail by shutdown(), after which no sample can be claimed
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private static final LongAdder accepted = Metrics.TELEMETRY_SAMPLES.labels("accepted");
+    private static final LongAdder droppedFull = Metrics.TELEMETRY_SAMPLES.labels("dropped_buffer_full");
+    private static final LongAdder droppedFailed = Metrics.TELEMETRY_SAMPLES.labels("dropped_write_failed");
+
+    private final Executor dbExecutor;
+    private final long flushIntervalMs;
+    private final int maxSamplesPerFlush;
+    private final int minChunkSamples;
+    private final long maxChunkAgeMs;
+
+    private final int mask;
+    private final int[] agentIds;
+    private final int[] seriesIds;
+    private final long[] timestamps;
+    private final double[] values;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    private final Map<String, Integer> seriesByName = new ConcurrentHashMap<>();
+    private final List<String> seriesNames = new ArrayList<>();
+    // Only touched by the thread holding flushPermit
+    private final Map<Long, SeriesBuffer> pending = new HashMap<>();
+    private volatile boolean running = false;
+    // Taken on the scheduler and given back by the flush task on the DB executor
+    private final Semaphore flushPermit = new Semaphore(1);
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private volatile long lastFlushMs = System.currentTimeMillis();
+    private ScheduledFuture<?> ticker;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            boolean more;
+            try {
+                more = flush(false);
+            } finally {
+                flushPermit.release();
+            }
+            if (more) {
+                requestFlush();
+            }
+        }
+    };
+
+    /**
+     * @param capacity ring buffer size, rounded up to a power of two
+     * @param minChunkSamples samples a series buffers before it is written
+     * @param maxChunkAgeMs time after which a series is written regardless
+     */
+    public TelemetryIngestor(Executor dbExecutor, int capacity, long flushIntervalMs, int maxSamplesPerFlush,
+            int minChunkSamples, long maxChunkAgeMs) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.dbExecutor = dbExecutor;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxSamplesPerFlush = Math.max(1, maxSamplesPerFlush);
+        this.minChunkSamples = Math.max(1, minChunkSamples);
+        this.maxChunkAgeMs = maxChunkAgeMs;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.agentIds = new int[size];
+        this.seriesIds = new int[size];
+        this.timestamps = new long[size];
+        this.values = new double[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        seriesId("clock_skew_ms");
+        seriesId("heartbeat_interval_ms");
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        this.running = true;
+        this.ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                requestFlush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        info("Telemetry ingestion started. buffer: %d flush interval: %dms chunk: %d samples or %dms",
+                mask + 1, flushIntervalMs, minChunkSamples, maxChunkAgeMs);
+    }
+
+    /**
+     * Stops the periodic flush and writes what is buffered, including the
+     * series still short of a full chunk, on the calling thread. Waits for
+     * a flush in progress to finish first. A producer that got past the
+     * running check before this was called still has its sample written:
+     * the ring is closed to new claims and every sample claimed before is
+     * drained once it has been published.
+     */
+    public void shutdown() {
+        this.running = false;
+        if (this.ticker != null) {
+            this.ticker.cancel(false);
+        }
+        flushPermit.acquireUninterruptibly();
+        try {
+            long end = tail.getAndSet(CLOSED);
+            if (end == CLOSED) {
+                return;
+            }
+            while (head < end) {
+                long drainedTo = head;
+                flush(true);
+                if (head == drainedTo) {
+                    // A producer is between claiming its slot and publishing it
+                    Thread.onSpinWait();
+                }
+            }
+            flush(true);
+        } finally {
+            flushPermit.release();
+        }
+        info("Telemetry ingestion stopped. %d chunks written", rowsWritten.get());
+    }
+
+    /**
+     * Resolves a series name to the id {@link #offer(int, int, long, double)}
+     * takes, registering the series on first use.
+     */
+    public int seriesId(String name) {
+        Integer id = seriesByName.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (seriesNames) {
+            id = seriesByName.get(name);
+            if (id == null) {
+                id = seriesNames.size();
+                seriesNames.add(name);
+                seriesByName.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    public boolean offer(int agentId, String series, long timestampMs, double value) {
+        return offer(agentId, seriesId(series), timestampMs, value);
+    }
+
+    /**
+     * Buffers one sample. Never blocks.
+     *
+     * @return false if the buffer was full and the sample was dropped, or
+     * ingestion is not running
+     */
+    public boolean offer(int agentId, int seriesId, long timestampMs, double value) {
+        if (!running) {
+            return false;
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence == CLOSED) {
+                return false;
+            }
+            if (sequence - head > mask) {
+                droppedFull.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        agentIds[slot] = agentId;
+        seriesIds[slot] = seriesId;
+        timestamps[slot] = timestampMs;
+        values[slot] = value;
+        published.lazySet(slot, sequence);
+        accepted.increment();
+        return true;
+    }
+
+    public int getBufferedCount() {
+        long sequence = tail.get();
+        if (sequence == CLOSED) {
+            return 0;
+        }
+        return (int) Math.max(0, sequence - head);
+    }
+
+    /**
+     * How far behind ingestion is: the time since the last completed flush
+     * while samples are waiting, zero otherwise.
+     */
+    public long getLagMillis() {
+        if (getBufferedCount() == 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - lastFlushMs);
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    private void requestFlush() {
+        if (!flushPermit.tryAcquire()) {
+            return;
+        }
+        if (getBufferedCount() == 0 && pending.isEmpty()) {
+            lastFlushMs = System.currentTimeMillis();
+            flushPermit.release();
+            return;
+        }
+        try {
+            dbExecutor.execute(flushTask);
+        } catch (RejectedExecutionException ex) {
+            flushPermit.release();
+            debug("DB executor saturated. Deferring telemetry flush of %d samples", getBufferedCount());
+        }
+    }
+
+    /**
+     * Drains up to maxSamplesPerFlush samples into the pending buffers and
+     * writes the buffers that are ready, or all of them when {@code force}
+     * is set. Only ever runs on one thread at a time, guarded by
+     * flushPermit.
+     *
+     * @return true if samples are left in the ring
+     */
+    private boolean flush(boolean force) {
+        long now = System.currentTimeMillis();
+        long sequence = head;
+        int drained = 0;
+        while (drained < maxSamplesPerFlush) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            long key = ((long) agentIds[slot] << 32) | (seriesIds[slot] & 0xffffffffL);
+            SeriesBuffer group = pending.get(key);
+            if (group == null) {
+                group = new SeriesBuffer(agentIds[slot], seriesIds[slot], now);
+                pending.put(key, group);
+            }
+            group.add(timestamps[slot], values[slot]);
+            sequence++;
+            drained++;
+        }
+        head = sequence;
+
+        List<SeriesBuffer> ready = new ArrayList<>();
+        int samples = 0;
+        Iterator<SeriesBuffer> groups = pending.values().iterator();
+        while (groups.hasNext()) {
+            SeriesBuffer group = groups.next();
+            if (force || group.count >= minChunkSamples || now - group.createdMs >= maxChunkAgeMs) {
+                ready.add(group);
+                samples += group.count;
+                groups.remove();
+            }
+        }
+        if (!ready.isEmpty()) {
+            try {
+                write(ready);
+                rowsWritten.addAndGet(ready.size());
+                debug("Flushed %d telemetry samples in %d chunks, %d series pending",
+                        samples, ready.size(), pending.size());
+            } catch (SQLException ex) {
+                droppedFailed.add(samples);
+                warn("Failed to write %d telemetry samples: %s", samples, ex.getMessage());
+            }
+        }
+        lastFlushMs = System.currentTimeMillis();
+        return getBufferedCount() > 0;
+    }
+
+    private void write(Iterable<SeriesBuffer> groups) throws SQLException {
+        String query = "INSERT INTO `agent_telemetry` (`agent_id`, `series`, `start_ms`, `end_ms`, "
+                + "`sample_count`, `data`) VALUES (?, ?, ?, ?, ?, ?);";
+        String[] names;
+        synchronized (seriesNames) {
+            names = seriesNames.toArray(new String[0]);
+        }
+        try (Connection connection = DBConnection.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query)) {
+            connection.setAutoCommit(false);
+            int rows = 0;
+            for (SeriesBuffer group : groups) {
+                statement.setInt(1, group.agentId);
+                statement.setString(2, names[group.seriesId]);
+                statement.setLong(3, group.startMs());
+                statement.setLong(4, group.endMs());
+                statement.setInt(5, group.count);
+                statement.setBytes(6, TelemetryChunk.encode(group.timestamps, group.values, group.count));
+                statement.addBatch();
+                if (++rows % ROWS_PER_BATCH == 0) {
+                    statement.executeBatch();
+                }
+            }
+            if (rows % ROWS_PER_BATCH != 0) {
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static final class SeriesBuffer {
+
+        private final int agentId;
+        private final int seriesId;
+        private long[] timestamps = new long[8];
+        private double[] values = new double[8];
+        private final long createdMs;
+        private int count = 0;
+
+        SeriesBuffer(int agentId, int seriesId, long createdMs) {
+            this.agentId = agentId;
+            this.seriesId = seriesId;
+            this.createdMs = createdMs;
+        }
+
+        void add(long timestamp, double value) {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            timestamps[count] = timestamp;
+            values[count] = value;
+            count++;
+        }
+
+        long startMs() {
+            long start = timestamps[0];
+            for (int i = 1; i < count; i++) {
+                start = Math.min(start, timestamps[i]);
+            }
+            return start;
+        }
+
+        long endMs() {
+            long end = timestamps[0];
+            for (int i = 1; i < count; i++) {
+                end = Math.max(end, timestamps[i]);
+            }
+            return end;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import com.whileloop.nyx2.utils.NX2Logger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Issues agent auth tokens. Tokens are generated ahead of time by a
+ * background thread into a bounded pool, from a single {@link SecureRandom}
+ * that is seeded once, so a login only has to take one from the pool. When
+ * an enrollment burst empties the pool, tokens are generated on the calling
+ * thread until the refill catches up.
+ * <p>
+ * Only {@link #hash(String)} of a token is stored in
+ * {@code agents.auth_token}: 64 hex characters instead of the 128 character
+ * token, and a leaked table does not leak usable tokens.
+ *
+ * @author sulochana
+ */
+public final class TokenIssuer extends NX2Logger {
+
+    static final int TOKEN_LENGTH = 128;
+    private static final int TOKEN_BYTES = TOKEN_LENGTH * 3 / 4;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("SHA-256 is not available", ex);
+            }
+        }
+    };
+
+    private final static TokenIssuer instance = new TokenIssuer(
+            ControlCentreConfig.getInt("N2CC_TOKEN_POOL_SIZE", 1024));
+
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayBlockingQueue<String> pool;
+    private final int lowWatermark;
+    private final AtomicBoolean refillRequested = new AtomicBoolean(false);
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
+    private final Thread refiller;
+
+    TokenIssuer(int poolSize) {
+        this.setVerboseLevel(Loglevel.INFO);
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        this.lowWatermark = Math.max(1, poolSize / 2);
+        this.refiller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                refill();
+            }
+        }, "n2cc-token-issuer");
+        this.refiller.setDaemon(true);
+        this.refiller.start();
+    }
+
+    public static TokenIssuer getInstance() {
+        return instance;
+    }
+
+    public String issue() {
+        issued.incrementAndGet();
+        String token = pool.poll();
+        if (pool.size() < lowWatermark && refillRequested.compareAndSet(false, true)) {
+            LockSupport.unpark(refiller);
+        }
+        if (token == null) {
+            poolMisses.incrementAndGet();
+            token = generate();
+        }
+        return token;
+    }
+
+    String generate() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private void refill() {
+        // The first draw seeds the generator; do it here rather than on a login
+        info("Token issuer seeding %s", random.getAlgorithm());
+        while (!Thread.currentThread().isInterrupted()) {
+            refillRequested.set(false);
+            while (pool.remainingCapacity() > 0) {
+                pool.offer(generate());
+            }
+            if (!refillRequested.get()) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    public int getPoolSize() {
+        return pool.size();
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    /**
+     * SHA-256 of a token, the form in which tokens are stored.
+     */
+    static byte[] digest(String authToken) {
+        return SHA256.get().digest(authToken.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Hex encoded {@link #digest(String)}, as stored in
+     * {@code agents.auth_token}.
+     */
+    static String hash(String authToken) {
+        return toHex(digest(authToken));
+    }
+
+    /**
+     * @return whether {@code token} could have been issued, by this class or
+     * before tokens were hashed: both are {@link #TOKEN_LENGTH} characters
+     */
+    static boolean isWellFormed(String token) {
+        return token != null && token.length() == TOKEN_LENGTH;
+    }
+
+    /**
+     * @return whether {@code token} has the form of {@link #hash(String)}
+     */
+    static boolean isHash(String token) {
+        return token.length() == 64 && fromHex(token) != null;
+    }
+
+    /**
+     * @return the bytes of a {@link #toHex(byte[])} string, or null if
+     * {@code hex} is not one
+     */
+    static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+}
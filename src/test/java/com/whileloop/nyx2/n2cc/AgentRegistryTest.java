@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Secondary indexes of {@link AgentRegistry} under concurrent registrations
+ * and disconnects sharing the same owner and remote address.
+ *
+ * @author sulochana
+ */
+public class AgentRegistryTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20000;
+
+    private static RemoteN2Agent agent(int agentId) {
+        RemoteN2Agent agent = mock(RemoteN2Agent.class);
+        when(agent.getAgentUUID()).thenReturn(UUID.randomUUID());
+        when(agent.getAgentId()).thenReturn(agentId);
+        when(agent.getOwnerId()).thenReturn(7);
+        when(agent.getRemoteAddress()).thenReturn("10.0.0.1");
+        return agent;
+    }
+
+    @Test
+    public void concurrentAddAndRemoveKeepsEveryRegisteredAgent() throws Exception {
+        final AgentRegistry registry = new AgentRegistry();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            Future<?>[] workers = new Future<?>[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                final RemoteN2Agent agent = agent(t);
+                workers[t] = pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        for (int i = 0; i < ROUNDS; i++) {
+                            registry.register(agent);
+                            registry.deregister(agent);
+                        }
+                        registry.register(agent);
+                    }
+                });
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(THREADS, registry.size());
+        assertEquals(THREADS, registry.findByOwner(7).size());
+        assertEquals(THREADS, registry.findByRemoteAddress("10.0.0.1").size());
+
+        for (RemoteN2Agent agent : registry.snapshot()) {
+            assertTrue(registry.deregister(agent));
+        }
+        assertTrue(registry.findByOwner(7).isEmpty());
+        assertTrue(registry.findByRemoteAddress("10.0.0.1").isEmpty());
+    }
+
+    @Test
+    public void staleSessionDoesNotRunStateUpdates() {
+        AgentRegistry registry = new AgentRegistry();
+        RemoteN2Agent stale = agent(1);
+        RemoteN2Agent current = agent(1);
+        final AtomicInteger updates = new AtomicInteger();
+        Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                updates.incrementAndGet();
+            }
+        };
+
+        registry.register(stale);
+        registry.runIfCurrent(stale, update);
+        assertEquals(1, updates.get());
+
+        registry.register(current);
+        registry.deregister(stale);
+        registry.runIfCurrent(stale, update);
+        assertEquals(1, updates.get());
+        registry.runIfCurrent(current, update);
+        assertEquals(2, updates.get());
+
+        registry.deregister(current);
+        registry.runIfCurrent(stale, update);
+        assertEquals(3, updates.get());
+    }
+
+}
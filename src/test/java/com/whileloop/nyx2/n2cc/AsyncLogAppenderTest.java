@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import org.junit.Test;
+
+/**
+ * Messages {@link AsyncLogAppender} can not format are written raw and do
+ * not stop the appender thread.
+ *
+ * @author sulochana
+ */
+public class AsyncLogAppenderTest {
+
+    @Test
+    public void unformattableMessagesFallBackToTheFormat() throws Exception {
+        Object throwing = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("broken toString");
+            }
+        };
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true, "UTF-8"));
+        try {
+            AsyncLogAppender appender = new AsyncLogAppender(16);
+            appender.append(HotPathLogger.Level.WARN, "test", "bad %d", "not a number", null, null);
+            appender.append(HotPathLogger.Level.WARN, "test", "throws %s", throwing, null, null);
+            appender.append(HotPathLogger.Level.WARN, "test", null, null, null, null);
+            appender.append(HotPathLogger.Level.INFO, "test", "still %s", "running", null, null);
+            appender.shutdown();
+        } finally {
+            System.setOut(stdout);
+        }
+
+        String output = captured.toString("UTF-8");
+        assertTrue(output, output.contains("WARN [test] bad %d"));
+        assertTrue(output, output.contains("WARN [test] throws %s"));
+        assertTrue(output, output.contains("WARN [test] null"));
+        assertTrue(output, output.contains("INFO [test] still running"));
+    }
+
+}
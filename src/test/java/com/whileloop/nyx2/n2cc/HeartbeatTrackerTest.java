@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+/**
+ * The timing wheel of {@link HeartbeatTracker}. Ticks are driven by the
+ * test instead of a scheduler and time by a manual clock.
+ *
+ * @author sulochana
+ */
+public class HeartbeatTrackerTest {
+
+    private static final class ManualClock implements HeartbeatTracker.Clock {
+
+        private long now = 1000000;
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        void advance(long ms) {
+            now += ms;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    private HeartbeatTracker tracker(long intervalMs, int allowedMisses, int wheelSize, int initialCapacity) {
+        return new HeartbeatTracker(intervalMs, allowedMisses, wheelSize, initialCapacity, clock);
+    }
+
+    private static RemoteN2Agent[] track(HeartbeatTracker tracker, int count) {
+        RemoteN2Agent[] agents = new RemoteN2Agent[count];
+        for (int i = 0; i < count; i++) {
+            agents[i] = mock(RemoteN2Agent.class);
+            tracker.track(agents[i]);
+        }
+        return agents;
+    }
+
+    @Test
+    public void eachTickChecksOneBucket() {
+        HeartbeatTracker tracker = tracker(100, 1, 4, 2);
+        RemoteN2Agent[] agents = track(tracker, 8);
+        clock.advance(101);
+
+        tracker.tick();
+        verify(agents[0]).handleHbMissCountReached();
+        verify(agents[4]).handleHbMissCountReached();
+        for (int slot : new int[]{1, 2, 3, 5, 6, 7}) {
+            verify(agents[slot], never()).handleHbMissCountReached();
+        }
+        assertEquals(6, tracker.getTrackedCount());
+
+        tracker.tick();
+        verify(agents[1]).handleHbMissCountReached();
+        verify(agents[5]).handleHbMissCountReached();
+        verify(agents[2], never()).handleHbMissCountReached();
+        assertEquals(4, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void agentWithinTheIntervalIsNotMissed() {
+        HeartbeatTracker tracker = tracker(100, 1, 1, 4);
+        RemoteN2Agent agent = track(tracker, 1)[0];
+        clock.advance(100);
+
+        tracker.tick();
+        verify(agent, never()).onHeartbeatMissed(1, 1);
+        assertEquals(1, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void missesCountUpUntilExpiry() {
+        HeartbeatTracker tracker = tracker(100, 3, 1, 4);
+        RemoteN2Agent agent = track(tracker, 1)[0];
+        clock.advance(101);
+
+        tracker.tick();
+        verify(agent).onHeartbeatMissed(1, 3);
+        tracker.tick();
+        verify(agent).onHeartbeatMissed(2, 3);
+        verify(agent, never()).handleHbMissCountReached();
+        tracker.tick();
+        verify(agent).onHeartbeatMissed(3, 3);
+        verify(agent).handleHbMissCountReached();
+        assertEquals(0, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void heartbeatRestoresAMissedAgent() {
+        HeartbeatTracker tracker = tracker(100, 3, 1, 4);
+        RemoteN2Agent agent = track(tracker, 1)[0];
+        clock.advance(101);
+        tracker.tick();
+        verify(agent).onHeartbeatMissed(1, 3);
+
+        tracker.heartbeat(0, agent);
+        tracker.tick();
+        verify(agent).onHeartbeatRestored();
+        verify(agent, never()).handleHbMissCountReached();
+    }
+
+    @Test
+    public void untrackedSlotIsReused() {
+        HeartbeatTracker tracker = tracker(100, 3, 4, 4);
+        RemoteN2Agent[] agents = track(tracker, 3);
+        tracker.untrack(1, agents[1]);
+        assertEquals(2, tracker.getTrackedCount());
+
+        RemoteN2Agent next = mock(RemoteN2Agent.class);
+        assertEquals(1, tracker.track(next));
+        // The previous holder of the slot can no longer untrack it
+        tracker.untrack(1, agents[1]);
+        assertEquals(3, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void heartbeatFromPreviousHolderIsIgnored() {
+        HeartbeatTracker tracker = tracker(100, 3, 1, 4);
+        RemoteN2Agent[] agents = track(tracker, 1);
+        tracker.untrack(0, agents[0]);
+        RemoteN2Agent next = mock(RemoteN2Agent.class);
+        tracker.track(next);
+        long tracked = tracker.getLastHeartbeat(0);
+
+        clock.advance(50);
+        tracker.heartbeat(0, agents[0]);
+        assertEquals(tracked, tracker.getLastHeartbeat(0));
+        tracker.heartbeat(0, next);
+        assertEquals(tracked + 50, tracker.getLastHeartbeat(0));
+    }
+
+    @Test
+    public void growingKeepsHeartbeatTimes() {
+        HeartbeatTracker tracker = tracker(100, 3, 2, 1);
+        RemoteN2Agent first = track(tracker, 1)[0];
+        long tracked = tracker.getLastHeartbeat(0);
+        clock.advance(50);
+        track(tracker, 7);
+        assertEquals(8, tracker.getTrackedCount());
+        assertEquals(tracked, tracker.getLastHeartbeat(0));
+        assertEquals(tracked + 50, tracker.getLastHeartbeat(7));
+
+        clock.advance(60);
+        tracker.heartbeat(0, first);
+        tracker.tick();
+        verify(first, never()).onHeartbeatMissed(1, 3);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * The token bucket behind {@link LoginAdmission}, driven with explicit
+ * timestamps.
+ *
+ * @author sulochana
+ */
+public class LoginAdmissionBucketTest {
+
+    private static final long START = TimeUnit.SECONDS.toNanos(100);
+
+    private static int drain(LoginAdmission.Bucket bucket, long now) {
+        int acquired = 0;
+        while (bucket.tryAcquire(now)) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    @Test
+    public void startsFullAtBurst() {
+        LoginAdmission.Bucket bucket = new LoginAdmission.Bucket(10, 5, START);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(START));
+        }
+        assertFalse(bucket.tryAcquire(START));
+    }
+
+    @Test
+    public void refillsAtRate() {
+        LoginAdmission.Bucket bucket = new LoginAdmission.Bucket(10, 5, START);
+        drain(bucket, START);
+        assertFalse(bucket.tryAcquire(START + TimeUnit.MILLISECONDS.toNanos(99)));
+        assertTrue(bucket.tryAcquire(START + TimeUnit.MILLISECONDS.toNanos(101)));
+        assertFalse(bucket.tryAcquire(START + TimeUnit.MILLISECONDS.toNanos(101)));
+        assertEquals(3, drain(bucket, START + TimeUnit.MILLISECONDS.toNanos(401)));
+    }
+
+    @Test
+    public void neverHoldsMoreThanBurst() {
+        LoginAdmission.Bucket bucket = new LoginAdmission.Bucket(10, 5, START);
+        drain(bucket, START);
+        assertEquals(5, drain(bucket, START + TimeUnit.HOURS.toNanos(1)));
+    }
+
+    @Test
+    public void clockGoingBackwardsDoesNotRefill() {
+        LoginAdmission.Bucket bucket = new LoginAdmission.Bucket(10, 5, START);
+        drain(bucket, START);
+        assertFalse(bucket.tryAcquire(START - TimeUnit.SECONDS.toNanos(1)));
+        assertFalse(bucket.tryAcquire(START));
+    }
+
+    @Test
+    public void fractionalRate() {
+        LoginAdmission.Bucket bucket = new LoginAdmission.Bucket(0.5, 1, START);
+        assertTrue(bucket.tryAcquire(START));
+        assertFalse(bucket.tryAcquire(START + TimeUnit.MILLISECONDS.toNanos(1999)));
+        assertTrue(bucket.tryAcquire(START + TimeUnit.MILLISECONDS.toNanos(2001)));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.whileloop.nyx2.messages.LoginMessage;
+import com.whileloop.sendit.client.SClient;
+import com.whileloop.sendit.messages.SMessage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Token logins that {@link LoginPipeline} turns away before any stage runs.
+ *
+ * @author sulochana
+ */
+public class LoginPipelineTest {
+
+    private Executor dbExecutor;
+    private ScheduledExecutorService scheduler;
+    private LoginPipeline pipeline;
+    private LongAdder expired;
+
+    @Before
+    public void setUp() {
+        dbExecutor = mock(Executor.class);
+        scheduler = mock(ScheduledExecutorService.class);
+        pipeline = new LoginPipeline(dbExecutor, scheduler, new AuthTokenCache(16, 60000), null, null, null,
+                5000, 5000, false);
+        expired = Metrics.LOGINS.labels(LoginMessage.LoginMechanism.AUTH_TOKEN.name(), "AUTH_TOKEN_EXPIRED");
+    }
+
+    private SClient login(String authToken) {
+        SClient client = mock(SClient.class);
+        LoginMessage msg = mock(LoginMessage.class);
+        when(msg.getMechanism()).thenReturn(LoginMessage.LoginMechanism.AUTH_TOKEN);
+        when(msg.getAuthToken()).thenReturn(authToken);
+        pipeline.submit(client, msg);
+        return client;
+    }
+
+    private void assertRejected(String authToken) {
+        long before = expired.sum();
+        SClient client = login(authToken);
+        verify(client, times(1)).Send(any(SMessage.class));
+        assertEquals(before + 1, expired.sum());
+        assertEquals(0, pipeline.getInFlightCount());
+        verifyNoInteractions(dbExecutor, scheduler);
+    }
+
+    @Test
+    public void missingTokenIsRejected() {
+        assertRejected(null);
+    }
+
+    @Test
+    public void tokenOfTheWrongLengthIsRejected() {
+        assertRejected("");
+        assertRejected(TokenIssuer.hash("token"));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Statement reuse through {@link PooledConnection}, against an in-memory H2
+ * database behind a single connection pool.
+ *
+ * @author sulochana
+ */
+public class PooledConnectionTest {
+
+    private static final String SELECT = "SELECT `value` FROM `pooled` WHERE `id` = ?;";
+
+    private DBConnectionPool pool;
+
+    @Before
+    public void setUp() throws SQLException {
+        pool = new DBConnectionPool("jdbc:h2:mem:pooled;MODE=MySQL;DB_CLOSE_DELAY=-1", 1, 1, 1000, 60000, 4);
+        try (Connection connection = pool.borrow();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE `pooled` (`id` INT PRIMARY KEY, `value` INT);");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = pool.borrow();
+                Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE `pooled`;");
+        }
+        pool.close();
+    }
+
+    private PreparedStatement physical(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            return statement.unwrap(PreparedStatement.class);
+        }
+    }
+
+    @Test
+    public void sameSqlReusesTheStatementAcrossLeases() throws SQLException {
+        PreparedStatement first;
+        try (Connection connection = pool.borrow()) {
+            first = physical(connection, SELECT);
+        }
+        long hits = pool.getStatementCacheHits();
+        try (Connection connection = pool.borrow()) {
+            assertSame(first, physical(connection, SELECT));
+        }
+        assertEquals(hits + 1, pool.getStatementCacheHits());
+    }
+
+    @Test
+    public void sameSqlOpenTwiceOnOneLeaseGetsTwoStatements() throws SQLException {
+        try (Connection connection = pool.borrow();
+                PreparedStatement first = connection.prepareStatement(SELECT);
+                PreparedStatement second = connection.prepareStatement(SELECT)) {
+            assertNotSame(first.unwrap(PreparedStatement.class), second.unwrap(PreparedStatement.class));
+        }
+    }
+
+    @Test
+    public void optionsAreResetWhenTheStatementIsReturned() throws SQLException {
+        int maxRows;
+        int queryTimeout;
+        int fetchSize;
+        try (Connection connection = pool.borrow();
+                PreparedStatement statement = connection.prepareStatement(SELECT)) {
+            maxRows = statement.getMaxRows();
+            queryTimeout = statement.getQueryTimeout();
+            fetchSize = statement.getFetchSize();
+            statement.setMaxRows(10);
+            statement.setQueryTimeout(7);
+            statement.setFetchSize(3);
+        }
+        try (Connection connection = pool.borrow();
+                PreparedStatement statement = connection.prepareStatement(SELECT)) {
+            assertEquals(maxRows, statement.getMaxRows());
+            assertEquals(queryTimeout, statement.getQueryTimeout());
+            assertEquals(fetchSize, statement.getFetchSize());
+        }
+    }
+
+    @Test
+    public void multiRowInsertsAreNotCached() throws SQLException {
+        String insert = "INSERT INTO `pooled` (`id`, `value`) VALUES (?, ?), (?, ?);";
+        PreparedStatement first;
+        try (Connection connection = pool.borrow()) {
+            first = physical(connection, insert);
+        }
+        assertTrue(first.isClosed());
+        try (Connection connection = pool.borrow()) {
+            assertNotSame(first, physical(connection, insert));
+        }
+    }
+
+    @Test
+    public void evictedConnectionIsReplacedUpToMinSize() throws SQLException {
+        try (Connection connection = pool.borrow()) {
+            // Breaks the connection under the lease, so it is discarded on release
+            connection.unwrap(Connection.class).close();
+        }
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(1, pool.getIdleCount());
+        try (Connection connection = pool.borrow()) {
+            assertNotNull(physical(connection, SELECT));
+        }
+    }
+
+    @Test
+    public void closingTheLeaseClosesItsStatements() throws SQLException {
+        PreparedStatement statement;
+        try (Connection connection = pool.borrow()) {
+            statement = connection.prepareStatement(SELECT);
+        }
+        assertTrue(statement.isClosed());
+    }
+
+}
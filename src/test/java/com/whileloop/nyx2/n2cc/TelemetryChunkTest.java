@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Team whileLOOP.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.whileloop.nyx2.n2cc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips of {@link TelemetryChunk}, including the bit field edge cases
+ * of the timestamp and value encodings.
+ *
+ * @author sulochana
+ */
+public class TelemetryChunkTest {
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) {
+        int count = timestamps.length;
+        byte[] data = TelemetryChunk.encode(timestamps, values, count);
+        long[] decodedTimestamps = new long[count];
+        double[] decodedValues = new double[count];
+        TelemetryChunk.decode(data, count, decodedTimestamps, decodedValues);
+        assertArrayEquals(timestamps, decodedTimestamps);
+        for (int i = 0; i < count; i++) {
+            assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+                    Double.doubleToRawLongBits(decodedValues[i]));
+        }
+    }
+
+    @Test
+    public void emptyAndSingleSample() {
+        assertEquals(0, TelemetryChunk.encode(new long[0], new double[0], 0).length);
+        assertRoundTrip(new long[]{1571000000000L}, new double[]{42.5});
+    }
+
+    @Test
+    public void regularIntervalsAndRepeatedValues() {
+        long[] timestamps = new long[120];
+        double[] values = new double[120];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1571000000000L + i * 5000L;
+            values[i] = 12.0;
+        }
+        assertRoundTrip(timestamps, values);
+        // 128 bits for the first sample, a full width first delta, then one bit each for time and value
+        assertEquals(16 + (68 + 1 + 118 * 2 + 7) / 8, TelemetryChunk.encode(timestamps, values, 120).length);
+    }
+
+    @Test
+    public void leadingZerosAboveThirtyOne() {
+        // XOR of neighbouring doubles has 63 leading zeros, more than the 5 bit field holds
+        double a = 1.0;
+        double b = Math.nextUp(a);
+        double c = Math.nextUp(b);
+        assertRoundTrip(new long[]{0, 1000, 2000, 3000}, new double[]{a, b, c, a});
+    }
+
+    @Test
+    public void sixtyFourMeaningfulBits() {
+        long bits = Double.doubleToRawLongBits(3.75);
+        double flipped = Double.longBitsToDouble(bits ^ 0x8000000000000001L);
+        assertRoundTrip(new long[]{0, 1000, 2000, 3000}, new double[]{3.75, flipped, 3.75, flipped});
+    }
+
+    @Test
+    public void deltaOfDeltaAtEveryWidth() {
+        long[] timestamps = {0, 5000, 10000, 10063, 10000, 10255, 9999, 12046, 9998, 1L << 40, -(1L << 40),
+            Long.MAX_VALUE / 4, Long.MIN_VALUE / 4};
+        double[] values = new double[timestamps.length];
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void specialValues() {
+        assertRoundTrip(new long[]{0, 1, 2, 3, 4, 5, 6},
+                new double[]{0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                    Double.MIN_VALUE, Double.MAX_VALUE});
+    }
+
+    @Test
+    public void randomSeries() {
+        Random random = new Random(7);
+        for (int run = 0; run < 50; run++) {
+            int count = 1 + random.nextInt(500);
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            long time = random.nextLong() >> 8;
+            for (int i = 0; i < count; i++) {
+                time += random.nextInt(3) == 0 ? random.nextInt(100000) - 50000 : 5000;
+                timestamps[i] = time;
+                values[i] = random.nextBoolean() ? random.nextGaussian() * 1000 : Math.rint(random.nextDouble() * 10);
+            }
+            assertRoundTrip(timestamps, values);
+        }
+    }
+
+}